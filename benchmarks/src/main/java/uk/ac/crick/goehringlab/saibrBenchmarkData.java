@@ -0,0 +1,84 @@
+package uk.ac.crick.goehringlab;
+
+import java.util.Random;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+
+// Synthetic calibration-like data: a smooth autofluorescence pattern plus noise, with each channel a
+// noisy linear function of it, scaled to the range of the bit depth.
+final class saibrBenchmarkData {
+
+    // Coefficients used to generate the primary channel
+    static final double C = 5;
+    static final double M1 = 0.8;
+    static final double M2 = 0.1;
+
+    private saibrBenchmarkData() {
+    }
+
+
+    // Channel 1 primary, channel 2 predictor 1, channel 3 predictor 2; planes are frames
+    static ImagePlus hyperstack(int bitDepth, int width, int height, int planes, long seed) {
+        ImageStack stack = new ImageStack(width, height);
+        Random random = new Random(seed);
+        double max = bitDepth == 8 ? 255 : 65535;
+        double scale = max / 4;
+        for (int t = 0; t < planes; t++) {
+            float[] af = new float[width * height];
+            float[] red = new float[width * height];
+            float[] fl = new float[width * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int i = y * width + x;
+                    double pattern = 1 + Math.sin(x / 23.0 + t) * Math.cos(y / 17.0);
+                    af[i] = (float) (scale * (pattern + 0.05 * random.nextGaussian()) + 10);
+                    red[i] = (float) (scale * (0.5 + 0.2 * pattern + 0.05 * random.nextGaussian()) + 10);
+                    fl[i] = (float) (C + M1 * af[i] + M2 * red[i] + 0.02 * scale * random.nextGaussian());
+                }
+            }
+            stack.addSlice(processor(bitDepth, width, height, fl, max));
+            stack.addSlice(processor(bitDepth, width, height, af, max));
+            stack.addSlice(processor(bitDepth, width, height, red, max));
+        }
+        ImagePlus imp = new ImagePlus("benchmark", stack);
+        imp.setDimensions(3, 1, planes);
+        return imp;
+    }
+
+
+    // Single channel stack of the given channel of a hyperstack, sharing pixel arrays
+    static ImageStack channel(ImagePlus imp, int channel) {
+        ImageStack source = imp.getStack();
+        ImageStack stack = new ImageStack(imp.getWidth(), imp.getHeight());
+        for (int t = 1; t <= imp.getNFrames(); t++)
+            stack.addSlice(null, source.getProcessor(imp.getStackIndex(channel, 1, t)));
+        return stack;
+    }
+
+
+    private static ImageProcessor processor(int bitDepth, int width, int height, float[] values, double max) {
+        switch (bitDepth) {
+            case 8:
+                ByteProcessor bp = new ByteProcessor(width, height);
+                for (int i = 0; i < values.length; i++)
+                    bp.set(i, (int) Math.max(0, Math.min(max, values[i])));
+                return bp;
+            case 16:
+                ShortProcessor sp = new ShortProcessor(width, height);
+                for (int i = 0; i < values.length; i++)
+                    sp.set(i, (int) Math.max(0, Math.min(max, values[i])));
+                return sp;
+            case 32:
+                return new FloatProcessor(width, height, values);
+            default:
+                throw new IllegalArgumentException("Bit depth must be 8, 16 or 32");
+        }
+    }
+
+}
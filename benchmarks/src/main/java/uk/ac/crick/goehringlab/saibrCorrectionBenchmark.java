@@ -0,0 +1,70 @@
+package uk.ac.crick.goehringlab;
+
+import java.util.concurrent.TimeUnit;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Correction of whole stacks, as in saibrEngine.correct
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class saibrCorrectionBenchmark {
+
+    @Param({"8", "16", "32"})
+    public int bitDepth;
+
+    @Param({"512"})
+    public int width;
+
+    @Param({"512"})
+    public int height;
+
+    @Param({"16"})
+    public int planes;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private ImageStack fl;
+    private ImageStack af;
+    private ImageStack red;
+
+
+    @Setup
+    public void setup() {
+        ImagePlus imp = saibrBenchmarkData.hyperstack(bitDepth, width, height, planes, 1);
+        fl = saibrBenchmarkData.channel(imp, 1);
+        af = saibrBenchmarkData.channel(imp, 2);
+        red = saibrBenchmarkData.channel(imp, 3);
+    }
+
+
+    @Benchmark
+    public ImageStack correct2() {
+        return saibrCorrection.correctStack(fl, af, null, saibrBenchmarkData.C, saibrBenchmarkData.M1, 0, threads);
+    }
+
+
+    @Benchmark
+    public ImageStack correct3() {
+        return saibrCorrection.correctStack(fl, af, red, saibrBenchmarkData.C, saibrBenchmarkData.M1,
+                saibrBenchmarkData.M2, threads);
+    }
+
+}
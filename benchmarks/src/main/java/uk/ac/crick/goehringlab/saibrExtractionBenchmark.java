@@ -0,0 +1,81 @@
+package uk.ac.crick.goehringlab;
+
+import java.util.concurrent.TimeUnit;
+
+import ij.ImagePlus;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// ROI pixel extraction of one plane through saibrRoiPixels.extract, with a cold and a warm blur cache, and
+// its accumulation into the regression by saibrFrameCalibration.accumulate
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class saibrExtractionBenchmark {
+
+    @Param({"8", "16", "32"})
+    public int bitDepth;
+
+    @Param({"512"})
+    public int width;
+
+    @Param({"512"})
+    public int height;
+
+    @Param({"2"})
+    public double sigma;
+
+    private ImagePlus imp;
+    private Roi roi;
+
+
+    @Setup
+    public void setup() {
+        imp = saibrBenchmarkData.hyperstack(bitDepth, width, height, 1, 1);
+        roi = new OvalRoi(width / 10, height / 10, width * 8 / 10, height * 8 / 10);
+    }
+
+
+    @Benchmark
+    public saibrRoiPixels extract2() {
+        saibrBlurCache.getInstance().clear();
+        return saibrRoiPixels.extract(imp, roi, 1, 1, 1, 2, 0, sigma, true, null);
+    }
+
+
+    @Benchmark
+    public saibrRoiPixels extract3() {
+        saibrBlurCache.getInstance().clear();
+        return saibrRoiPixels.extract(imp, roi, 1, 1, 1, 2, 3, sigma, true, null);
+    }
+
+
+    @Benchmark
+    public saibrRoiPixels extract3Cached() {
+        return saibrRoiPixels.extract(imp, roi, 1, 1, 1, 2, 3, sigma, true, null);
+    }
+
+
+    @Benchmark
+    public saibrRegression accumulate3Cached() {
+        saibrRegression regression = new saibrRegression(2);
+        saibrFrameCalibration.accumulate(imp, roi, 1, 1, 1, 2, 3, sigma, regression, null, null);
+        return regression;
+    }
+
+}
@@ -0,0 +1,88 @@
+package uk.ac.crick.goehringlab;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Streaming regression over extracted pixel values, as in saibrFrameCalibration.accumulate
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class saibrRegressionBenchmark {
+
+    @Param({"1000000"})
+    public int pixels;
+
+    private float[] fl;
+    private float[] af;
+    private float[] red;
+    private saibrRegression accumulated;
+
+
+    // Fitted slope, so the work cannot be optimised away
+    private static double result(saibrRegression regression) {
+        return regression.getM1();
+    }
+
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        fl = new float[pixels];
+        af = new float[pixels];
+        red = new float[pixels];
+        for (int i = 0; i < pixels; i++) {
+            af[i] = (float) (1000 + 200 * random.nextGaussian());
+            red[i] = (float) (500 + 100 * random.nextGaussian());
+            fl[i] = (float) (saibrBenchmarkData.C + saibrBenchmarkData.M1 * af[i] + saibrBenchmarkData.M2 * red[i]
+                    + 20 * random.nextGaussian());
+        }
+        accumulated = new saibrRegression(2);
+        for (int i = 0; i < pixels; i++)
+            accumulated.add(fl[i], af[i], red[i]);
+    }
+
+
+    @Benchmark
+    public double regression2() {
+        saibrRegression regression = new saibrRegression(1);
+        for (int i = 0; i < pixels; i++)
+            regression.add(fl[i], af[i]);
+        regression.fit();
+        return result(regression);
+    }
+
+
+    @Benchmark
+    public double regression3() {
+        saibrRegression regression = new saibrRegression(2);
+        for (int i = 0; i < pixels; i++)
+            regression.add(fl[i], af[i], red[i]);
+        regression.fit();
+        return result(regression);
+    }
+
+
+    // Fit alone, from accumulated statistics
+    @Benchmark
+    public double fitOrthogonal3() {
+        accumulated.fit(saibrRegression.ORTHOGONAL);
+        return result(accumulated);
+    }
+
+}
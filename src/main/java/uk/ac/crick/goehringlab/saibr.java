@@ -1,26 +1,33 @@
 package uk.ac.crick.goehringlab;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.List;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.Plot;
 import ij.gui.Roi;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.io.OpenDialog;
+import ij.io.SaveDialog;
 import ij.measure.ResultsTable;
-import ij.plugin.ChannelSplitter;
-import ij.plugin.ImageCalculator;
 import ij.plugin.frame.PlugInDialog;
 import ij.process.ImageProcessor;
-
-import Jama.Matrix;
-import Jama.QRDecomposition;
+import ij.util.Tools;
 
 
 public class saibr extends PlugInDialog implements ActionListener {
@@ -46,6 +53,10 @@ public class saibr extends PlugInDialog implements ActionListener {
     // Buttons
     private Button menuCalButton;
     private Button menuRunButton;
+    private JCheckBox menuTimingsCheckbox;
+
+    // Stage timings of the current run
+    private saibrTimings timings = new saibrTimings("none");
 
 
     // CALIBRATION WINDOW
@@ -65,14 +76,18 @@ public class saibr extends PlugInDialog implements ActionListener {
     private JComboBox<String> calAfChannelBox;
     private JComboBox<String> calRedChannelBox;
     private JCheckBox calRoiCheckbox;
+    private JCheckBox calFramesCheckbox;
     private JTextField calGaussianText;
+    private JComboBox<String> calMethodBox;
 
     // Buttons
     private Button calRefreshButton;
     private Button calRunButton;
+    private Button calAutoSigmaButton;
     private Button calResidsButton;
     private Button calTabButton;
     private Button calSaveButton;
+    private Button calProfileButton;
 
     // Channels
     private String calFlChannel = "Channel 1";
@@ -81,15 +96,29 @@ public class saibr extends PlugInDialog implements ActionListener {
 
     // Images
     private ImagePlus[] calImages;
+    private ImagePlus[] calSourceImages;
+    private Roi[] calRois;
+    private saibrRegression[] calImageRegressions;
+
+    // Channels and blur of the run that calibrated on calImages, for the plot and the pixel export
+    private saibrEngine.Params calParams;
 
-    // Results table
-    private ResultsTable calResultsTable;
+    // Bins per axis of the regression plot
+    private static final int CAL_PLOT_BINS = 200;
+
+    // Range of blurred pixel values of each channel {primary, predictor 1, predictor 2}, as {min, max}
+    private saibrPixelHistogram calHistogram;
 
     // Calibration parameters
     private double cal_m1 = 1.;
     private double cal_m2 = 0.;
     private double cal_c = 0.;
     private double R2;
+    private double[][] calFrameCoefs;
+    private double cal_sigma;
+    private int cal_method;
+    private saibrRegression calRegression;
+    private saibrRegression[] calFrameRegressions;
 
 
     // RUN WINDOW
@@ -109,15 +138,22 @@ public class saibr extends PlugInDialog implements ActionListener {
     private JTextField runCText;
     private JTextField runM1Text;
     private JTextField runM2Text;
+    private JTextField runThreadsText;
+    private JCheckBox runVirtualCheckbox;
+    private JCheckBox runFileCheckbox;
+    private JComboBox<String> runOutputBox;
+    private JCheckBox runFramesCheckbox;
+    private JCheckBox runPreviewCheckbox;
+
+    // Live preview, or null
+    private saibrPreview runPreview;
 
     // Buttons
     private Button runRefreshButton;
     private Button runRunButton;
-
-    // Channels
-    private String runFlChannel;
-    private String runAfChannel;
-    private String runRedChannel;
+    private Button runBatchButton;
+    private Button runFileButton;
+    private Button runProfileButton;
 
 
     ///////////////////// WINDOWS ////////////////////
@@ -139,9 +175,15 @@ public class saibr extends PlugInDialog implements ActionListener {
         menuRunButton.addActionListener(this);
         menuRunButton.setEnabled(true);
 
+        // Timings
+        menuTimingsCheckbox = new JCheckBox("Log timings");
+        menuTimingsCheckbox.setSelected(saibrTimings.isEnabled());
+        menuTimingsCheckbox.addActionListener(e -> saibrTimings.setEnabled(menuTimingsCheckbox.isSelected()));
+
         // Add panels
         panel.add(menuCalButton);
         panel.add(menuRunButton);
+        panel.add(menuTimingsCheckbox);
 
         // Finish panel
         menuFrame.add(panel);
@@ -237,10 +279,24 @@ public class saibr extends PlugInDialog implements ActionListener {
         calRoiCheckbox.setFont(f.deriveFont(f.getStyle() | Font.ITALIC));
         calRoiCheckbox.setSelected(true);
 
+        // Per-frame calibration
+        JLabel framesLabel = new JLabel("Time-lapse:", SwingConstants.RIGHT);
+        calFramesCheckbox = new JCheckBox("Calibrate each frame separately");
+        calFramesCheckbox.setSelected(false);
+
         // Gaussian
         JLabel gaussianLabel = new JLabel("Gaussian blur (radius):", SwingConstants.RIGHT);
         calGaussianText = new JTextField("2", 4);
 
+        // Regression method
+        JLabel methodLabel = new JLabel("Regression:", SwingConstants.RIGHT);
+        calMethodBox = new JComboBox<>(saibrRegression.METHOD_NAMES);
+
+        // Automatic blur radius
+        calAutoSigmaButton = new Button("Auto-select blur radius");
+        calAutoSigmaButton.addActionListener(this);
+        calAutoSigmaButton.setEnabled(true);
+
         // Refresh
         calRefreshButton = new Button("Refresh image list");
         calRefreshButton.addActionListener(this);
@@ -266,6 +322,11 @@ public class saibr extends PlugInDialog implements ActionListener {
         calSaveButton.addActionListener(this);
         calSaveButton.setEnabled(false);
 
+        // Save profile
+        calProfileButton = new Button("Save profile...");
+        calProfileButton.addActionListener(this);
+        calProfileButton.setEnabled(false);
+
         // Add panels
         panel.add(imageLabel);
         for (int i = 0; i < calImageCheckboxes.length; i++) {
@@ -282,13 +343,19 @@ public class saibr extends PlugInDialog implements ActionListener {
         panel.add(calRedChannelBox);
         panel.add(roiLabel);
         panel.add(calRoiCheckbox);
+        panel.add(framesLabel);
+        panel.add(calFramesCheckbox);
         panel.add(gaussianLabel);
         panel.add(calGaussianText);
+        panel.add(new JLabel(""));
+        panel.add(calAutoSigmaButton);
+        panel.add(methodLabel);
+        panel.add(calMethodBox);
         panel.add(calRefreshButton);
         panel.add(calRunButton);
         panel.add(calResidsButton);
         panel.add(calTabButton);
-        panel.add(new JLabel(""));
+        panel.add(calProfileButton);
         panel.add(calSaveButton);
 
 
@@ -380,6 +447,59 @@ public class saibr extends PlugInDialog implements ActionListener {
         JLabel m2Label = new JLabel("m2:", SwingConstants.RIGHT);
         runM2Text = new JTextField(String.format(Locale.UK, "%.3f", cal_m2), 4);
 
+        // Threads
+        JLabel threadsLabel = new JLabel("Threads:", SwingConstants.RIGHT);
+        runThreadsText = new JTextField(String.valueOf(Prefs.getThreads()), 4);
+
+        // Virtual output
+        JLabel virtualLabel = new JLabel("Output:", SwingConstants.RIGHT);
+        runVirtualCheckbox = new JCheckBox("Compute planes on demand (virtual)");
+        runVirtualCheckbox.setSelected(false);
+
+        // File output
+        JLabel fileLabel = new JLabel("");
+        runFileCheckbox = new JCheckBox("Write to TIFF file instead of displaying");
+        runFileCheckbox.setSelected(false);
+
+        // Output type
+        JLabel outputLabel = new JLabel("Output type:", SwingConstants.RIGHT);
+        runOutputBox = new JComboBox<>(saibrCorrection.OUTPUT_NAMES);
+
+        // Per-frame calibration
+        JLabel framesLabel = new JLabel("Time-lapse:", SwingConstants.RIGHT);
+        runFramesCheckbox = new JCheckBox("Use per-frame calibration");
+        runFramesCheckbox.setSelected(calFrameCoefs != null);
+        runFramesCheckbox.setEnabled(calFrameCoefs != null);
+
+        // Live preview, refreshed on any change to the image, channels or coefficients
+        JLabel previewLabel = new JLabel("Preview:", SwingConstants.RIGHT);
+        runPreviewCheckbox = new JCheckBox("Live preview of current plane");
+        runPreviewCheckbox.setSelected(false);
+        runPreviewCheckbox.addActionListener(e -> runUpdatePreview());
+        runFramesCheckbox.addActionListener(e -> runUpdatePreview());
+        for (JComboBox<String> box : Arrays.asList(runImageBox, runFlChannelBox, runAfChannelBox, runRedChannelBox))
+            box.addActionListener(e -> runUpdatePreview());
+        DocumentListener previewListener = new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                runUpdatePreview();
+            }
+
+            public void removeUpdate(DocumentEvent e) {
+                runUpdatePreview();
+            }
+
+            public void changedUpdate(DocumentEvent e) {
+                runUpdatePreview();
+            }
+        };
+        for (JTextField text : Arrays.asList(runCText, runM1Text, runM2Text))
+            text.getDocument().addDocumentListener(previewListener);
+        runFrame.addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) {
+                runStopPreview();
+            }
+        });
+
         // Refresh
         runRefreshButton = new Button("Refresh image list");
         runRefreshButton.addActionListener(this);
@@ -390,6 +510,21 @@ public class saibr extends PlugInDialog implements ActionListener {
         runRunButton.addActionListener(this);
         runRunButton.setEnabled(true);
 
+        // Batch
+        runBatchButton = new Button("Batch correct folder...");
+        runBatchButton.addActionListener(this);
+        runBatchButton.setEnabled(true);
+
+        // Out-of-core correction
+        runFileButton = new Button("Correct TIFF on disk...");
+        runFileButton.addActionListener(this);
+        runFileButton.setEnabled(true);
+
+        // Load profile
+        runProfileButton = new Button("Load profile...");
+        runProfileButton.addActionListener(this);
+        runProfileButton.setEnabled(true);
+
         // Add panels
         panel.add(imageLabel);
         panel.add(runImageBox);
@@ -405,8 +540,23 @@ public class saibr extends PlugInDialog implements ActionListener {
         panel.add(runM1Text);
         panel.add(m2Label);
         panel.add(runM2Text);
+        panel.add(threadsLabel);
+        panel.add(runThreadsText);
+        panel.add(virtualLabel);
+        panel.add(runVirtualCheckbox);
+        panel.add(fileLabel);
+        panel.add(runFileCheckbox);
+        panel.add(outputLabel);
+        panel.add(runOutputBox);
+        panel.add(framesLabel);
+        panel.add(runFramesCheckbox);
+        panel.add(previewLabel);
+        panel.add(runPreviewCheckbox);
         panel.add(runRefreshButton);
         panel.add(runRunButton);
+        panel.add(runProfileButton);
+        panel.add(runBatchButton);
+        panel.add(runFileButton);
 
         // Finish panel
         runFrame.add(panel);
@@ -442,26 +592,36 @@ public class saibr extends PlugInDialog implements ActionListener {
         if (source == calRunButton)
             calRun();
 
+        // Automatic blur radius
+        if (source == calAutoSigmaButton)
+            calAutoSigma();
+
         // Show residuals
         if (source == calResidsButton) {
-            if (Objects.equals(calRedChannel, "<None>"))
-                for (int i = 0; i < calImages.length; i++) {
-                    calShowResids2(calImages[i], calSelectedImageTitles.get(i));
+            for (int i = 0; i < calImages.length; i++) {
+                if (WindowManager.getImage(calImages[i].getID()) == null) {
+                    IJ.showMessage("ERROR: " + calSelectedImageTitles.get(i) + " is no longer open");
+                    continue;
                 }
-            else
-                for (int i = 0; i < calImages.length; i++) {
+                if (!calParams.useRed())
+                    calShowResids2(calImages[i], calSelectedImageTitles.get(i));
+                else
                     calShowResids3(calImages[i], calSelectedImageTitles.get(i));
-                }
+            }
         }
 
         // Export results table
         if (source == calTabButton)
-            calShowResTable();
+            calExportPixels();
 
         // Save and continue
         if (source == calSaveButton)
             calRunContinue();
 
+        // Save profile
+        if (source == calProfileButton)
+            calSaveProfile();
+
         // RUN
 
         // Open window
@@ -483,6 +643,18 @@ public class saibr extends PlugInDialog implements ActionListener {
         if (source == runRunButton)
             runRun();
 
+        // Batch correction
+        if (source == runBatchButton)
+            runBatch();
+
+        // Out-of-core correction
+        if (source == runFileButton)
+            runCorrectFile();
+
+        // Load profile
+        if (source == runProfileButton)
+            runLoadProfile();
+
     }
 
 
@@ -513,7 +685,9 @@ public class saibr extends PlugInDialog implements ActionListener {
         String afChannel = (String) calAfChannelBox.getSelectedItem();
         String redChannel = (String) calRedChannelBox.getSelectedItem();
         boolean useRoi = calRoiCheckbox.isSelected();
+        boolean useFrames = calFramesCheckbox.isSelected();
         String gaus = calGaussianText.getText();
+        int method = calMethodBox.getSelectedIndex();
 
         // Close window
         calFrame.dispatchEvent(new WindowEvent(calFrame, WindowEvent.WINDOW_CLOSING));
@@ -532,7 +706,9 @@ public class saibr extends PlugInDialog implements ActionListener {
         calAfChannelBox.setSelectedItem(afChannel);
         calRedChannelBox.setSelectedItem(redChannel);
         calRoiCheckbox.setSelected(useRoi);
+        calFramesCheckbox.setSelected(useFrames);
         calGaussianText.setText(gaus);
+        calMethodBox.setSelectedIndex(method);
     }
 
 
@@ -540,26 +716,165 @@ public class saibr extends PlugInDialog implements ActionListener {
 
         // Deactivate buttons
         calSaveButton.setEnabled(false);
+        calProfileButton.setEnabled(false);
         calTabButton.setEnabled(false);
         calResidsButton.setEnabled(false);
 
+        // Get images and ROIs
+        timings = new saibrTimings("calibration");
+        calSelection selection = calGetSelection();
+        if (selection == null)
+            return;
+
+        // Calibrate each frame separately
+        if (calFramesCheckbox.isSelected()) {
+            calRunFrames(selection);
+            return;
+        }
+
+        // Stream images through the regression one at a time, keeping a summary of each
+        saibrEngine.Params params = calGetParams(selection);
+        saibrEngine.Result result;
+        try {
+            result = saibrEngine.calibrate(selection.images, selection.rois, params, timings);
+        } catch (RuntimeException e) {
+            IJ.showMessage("ERROR: " + e.getMessage());
+            return;
+        }
+        calSetResult(result, params, selection);
+
+        // Images are read in place, and kept for the residuals
+        calImages = calSourceImages;
+        calParams = params;
+        calImageRegressions = result.imageRegressions;
+        calHistogram = result.histogram;
+
+        // Plot regression from the pixels binned during calibration
+        boolean useRed = params.useRed();
+        timings.start("plot");
+        if (useRed) {
+            calPlotRegression3();
+        } else {
+            calPlotRegression2();
+        }
+        timings.stop(result.nPixels);
+
+        // Per-image summary
+        calShowImageTable();
+
+        // Activate buttons
+        calSaveButton.setEnabled(true);
+        calProfileButton.setEnabled(true);
+        calTabButton.setEnabled(true);
+        calResidsButton.setEnabled(true);
+        timings.finish();
+    }
+
+
+    // Engine parameters from the window, for the channels of a selection
+    private saibrEngine.Params calGetParams(calSelection selection) {
+        saibrEngine.Params params = new saibrEngine.Params();
+        params.primary = selection.fl;
+        params.predictor1 = selection.af;
+        params.predictor2 = selection.red;
+        params.sigma = Tools.parseDouble(calGaussianText.getText());
+        params.method = calMethodBox.getSelectedIndex();
+        params.perFrame = calFramesCheckbox.isSelected();
+        params.threads = Prefs.getThreads();
+        return params;
+    }
+
+
+    // Uses a calibration, and the selection it was made from, as the current one
+    private void calSetResult(saibrEngine.Result result, saibrEngine.Params params, calSelection selection) {
+        calSelectedImageTitles = selection.titles;
+        calSourceImages = selection.images;
+        calRois = selection.rois;
+        calFlChannel = selection.flChannel;
+        calAfChannel = selection.afChannel;
+        calRedChannel = selection.redChannel;
+        cal_c = result.c;
+        cal_m1 = result.m1;
+        cal_m2 = result.m2;
+        R2 = result.r2;
+        calRegression = result.regression;
+        calFrameRegressions = result.frameRegressions;
+        calFrameCoefs = result.frameCoefs;
+        cal_sigma = params.sigma;
+        cal_method = params.method;
+    }
+
+
+    private void calAutoSigma() {
+
+        // Get images and ROIs, leaving the last calibration's selection untouched
+        calSelection selection = calGetSelection();
+        if (selection == null)
+            return;
+
+        // Score candidate sigmas
+        saibrSigmaSweep sweep;
+        try {
+            sweep = saibrSigmaSweep.run(selection.images, selection.rois, selection.fl, selection.af, selection.red,
+                    saibrSigmaSweep.DEFAULT_SIGMAS, Prefs.getThreads());
+        } catch (RuntimeException e) {
+            IJ.showMessage("ERROR: " + e.getMessage());
+            return;
+        }
+        double best = sweep.getBestSigma();
+        if (Double.isNaN(best)) {
+            IJ.showMessage("ERROR: Too few pixels to select a blur radius");
+            return;
+        }
+
+        // Plot score curve
+        Plot plot = new Plot("Blur radius selection", "Gaussian blur (radius)", "Held-out R²");
+        plot.setColor(Color.BLUE);
+        plot.addPoints(sweep.getSigmas(), sweep.getScores(), Plot.CONNECTED_CIRCLES);
+        plot.setColor(Color.RED);
+        plot.addLabel(0.05, 0.1, "Selected radius: " + IJ.d2s(best, 1));
+        plot.show();
+
+        // Set radius
+        calGaussianText.setText(IJ.d2s(best, 1));
+    }
+
+
+    // Images, ROIs and channels chosen in the calibration window
+    private static class calSelection {
+        List<String> titles;
+        ImagePlus[] images;
+        Roi[] rois;
+        String flChannel;
+        String afChannel;
+        String redChannel;
+        int fl;
+        int af;
+        int red;
+    }
+
+
+    // Checks channels and collects the selected images and their ROIs, null (with a message) if they cannot
+    // be used. The window's state is left unchanged
+    private calSelection calGetSelection() {
+
         // Get channels
-        calFlChannel = (String) calFlChannelBox.getSelectedItem();
-        calAfChannel = (String) calAfChannelBox.getSelectedItem();
-        calRedChannel = (String) calRedChannelBox.getSelectedItem();
+        String flChannel = (String) calFlChannelBox.getSelectedItem();
+        String afChannel = (String) calAfChannelBox.getSelectedItem();
+        String redChannel = (String) calRedChannelBox.getSelectedItem();
 
         // Checking channel requirements
-        if (Objects.equals(calFlChannel, calAfChannel)) {
+        if (Objects.equals(flChannel, afChannel)) {
             IJ.showMessage("ERROR: Primary and Predictor 1 channels must be different");
-            return;
+            return null;
         }
-        if (Objects.equals(calAfChannel, calRedChannel)) {
+        if (Objects.equals(afChannel, redChannel)) {
             IJ.showMessage("ERROR: Predictor 1 and Predictor 2 channels must be different");
-            return;
+            return null;
         }
-        if (Objects.equals(calRedChannel, calFlChannel)) {
+        if (Objects.equals(redChannel, flChannel)) {
             IJ.showMessage("ERROR: Primary and Predictor 2 channels must be different");
-            return;
+            return null;
         }
 
         // Up-to-date list of images
@@ -573,46 +888,39 @@ public class saibr extends PlugInDialog implements ActionListener {
         }
 
         // List of selected images
-        calSelectedImageTitles = new ArrayList<>();
+        List<String> selectedImageTitles = new ArrayList<>();
         for (int i = 0; i < calAllImageTitles.size(); i++) {
             if (calImageCheckboxes[i].isSelected()) {
-                calSelectedImageTitles.add(calAllImageTitles.get(i));
+                selectedImageTitles.add(calAllImageTitles.get(i));
             }
         }
 
         // Error if no images are selected
-        if (calSelectedImageTitles.size() == 0) {
+        if (selectedImageTitles.size() == 0) {
             IJ.showMessage("No images selected!");
-            return;
-        }
-
-        // Error if too many images selected
-        if (calSelectedImageTitles.size() > 10) {
-            IJ.showMessage("Too many images selected. Please select 10 or fewer.");
-            return;
+            return null;
         }
 
-        // Store images
-        calImages = new ImagePlus[calSelectedImageTitles.size()];
-        Roi[] calRois = new Roi[calSelectedImageTitles.size()];
-        for (int i = 0; i < calSelectedImageTitles.size(); i++) {
-            String imageName = calSelectedImageTitles.get(i);
+        // Collect images
+        ImagePlus[] images = new ImagePlus[selectedImageTitles.size()];
+        Roi[] rois = new Roi[selectedImageTitles.size()];
+        for (int i = 0; i < selectedImageTitles.size(); i++) {
+            String imageName = selectedImageTitles.get(i);
 
             // Checking image is still open
             if (!imageTitles.contains(imageName)) {
                 IJ.showMessage("ERROR: Image " + imageName + " is not open!");
-                return;
+                return null;
             }
 
             // Open image
             ImagePlus imp = WindowManager.getImage(calHashTable.get(imageName));
-            int currentT = imp.getT();
 
 //            // Checking image bit depth
 //            int bitDepth = imp.getBitDepth();
 //            if (bitDepth != 16) {
 //                IJ.showMessage("ERROR: 16-bit images required");
-//                return;
+//                return null;
 //            }
 
             // Get ROI
@@ -620,449 +928,85 @@ public class saibr extends PlugInDialog implements ActionListener {
                 Roi roi = imp.getRoi();
                 if (roi == null) {
                     IJ.showMessage("ERROR: No ROI selected for " + imageName);
-                    return;
+                    return null;
                 }
-                calRois[i] = roi;
+                rois[i] = roi;
             } else {
                 Roi roi = new Roi(0, 0, imp.getDimensions()[0], imp.getDimensions()[1]);
-                calRois[i] = roi;
+                rois[i] = roi;
             }
 
             // Checking roi requirements
-            if (!calRois[i].isArea()) {
+            if (!rois[i].isArea()) {
                 IJ.showMessage("ERROR: No ROI selected for " + imageName);
-                return;
+                return null;
             }
 
-            // Copy image
-            ImagePlus imp2 = imp.duplicate();
-            imp2.setT(currentT);
-
-            // Save image
-            calImages[i] = imp2;
+            images[i] = imp;
         }
 
-        // Get pixel data for each embryo
-        calEmbryoData[] allEmbryoData = new calEmbryoData[calSelectedImageTitles.size()];
-        for (int i = 0; i < calImages.length; i++) {
-            ImagePlus imp = calImages[i];
-            Roi roi = calRois[i];
-
-            // Get embryo data
-            calEmbryoData data;
-            if (Objects.equals(calRedChannel, "<None>")) {
-                data = calGetPixels2(imp, roi);
-            } else {
-                data = calGetPixels3(imp, roi);
-            }
-
-            // Warning for saturated pixels
-            if (data.flSatCount > 0) {
-                IJ.showMessage("WARNING: " + data.flSatCount + " saturated pixels in Primary channel of image "
-                        + calSelectedImageTitles.get(i));
-            }
-            if (data.afSatCount > 0) {
-                IJ.showMessage("WARNING: " + data.afSatCount + " saturated pixels in Predictor channel 1 of image "
-                        + calSelectedImageTitles.get(i));
-            }
-            if (data.redSatCount > 0) {
-                IJ.showMessage("WARNING: " + data.redSatCount + " saturated pixels in Predictor channel 2 of image "
-                        + calSelectedImageTitles.get(i));
-            }
+        calSelection selection = new calSelection();
+        selection.titles = selectedImageTitles;
+        selection.images = images;
+        selection.rois = rois;
+        selection.flChannel = flChannel;
+        selection.afChannel = afChannel;
+        selection.redChannel = redChannel;
+        selection.fl = calChannelsHashTable.get(flChannel) + 1;
+        selection.af = calChannelsHashTable.get(afChannel) + 1;
+        selection.red = Objects.equals(redChannel, "<None>") ? 0 : calChannelsHashTable.get(redChannel) + 1;
+        return selection;
+    }
 
-            // Save data
-            allEmbryoData[i] = data;
 
-        }
+    private void calRunFrames(calSelection selection) {
 
-        // Total number of pixels
-        int n = 0;
-        for (calEmbryoData i : allEmbryoData) n += i.n;
-
-        // Pool pixels
-        double[] flVals = new double[n];
-        double[] afVals = new double[n];
-        double[] redVals = new double[n];
-        int k = 0;
-        if (Objects.equals(calRedChannel, "<None>")) {
-            for (calEmbryoData i : allEmbryoData) {
-                for (int j = 0; j < i.n; j++) {
-                    flVals[k] = i.flGausPixelVals[j];
-                    afVals[k] = i.afGausPixelVals[j];
-                    k += 1;
-                }
-            }
-        } else {
-            for (calEmbryoData i : allEmbryoData) {
-                for (int j = 0; j < i.n; j++) {
-                    flVals[k] = i.flGausPixelVals[j];
-                    afVals[k] = i.afGausPixelVals[j];
-                    redVals[k] = i.redGausPixelVals[j];
-                    k += 1;
-                }
-            }
+        // Fit each frame
+        saibrEngine.Params params = calGetParams(selection);
+        saibrEngine.Result result;
+        try {
+            result = saibrEngine.calibrate(selection.images, selection.rois, params, timings);
+        } catch (RuntimeException e) {
+            IJ.showMessage("ERROR: " + e.getMessage());
+            return;
         }
 
-        // Run and plot regression
-        if (Objects.equals(calRedChannel, "<None>")) {
-            calRunRegression2(flVals, afVals);
-            calPlotRegression2(allEmbryoData);
-        } else {
-            calRunRegression3(flVals, afVals, redVals);
-            calPlotRegression3(allEmbryoData);
+        // Coefficient table
+        ResultsTable table = new ResultsTable();
+        for (int t = 0; t < result.frameRegressions.length; t++) {
+            saibrRegression regression = result.frameRegressions[t];
+            table.incrementCounter();
+            table.addValue("frame", t + 1);
+            table.addValue("c", regression.getC());
+            table.addValue("m1", regression.getM1());
+            if (params.useRed())
+                table.addValue("m2", regression.getM2());
+            table.addValue("R2", regression.getR2());
+            table.addValue("n_pixels", regression.getN());
         }
+        table.show("SAIBR frame calibration");
 
-        // Create results table
-        calFillTable(allEmbryoData);
+        // Pooled parameters
+        calSetResult(result, params, selection);
 
         // Activate buttons
         calSaveButton.setEnabled(true);
-        calTabButton.setEnabled(true);
-        calResidsButton.setEnabled(true);
-    }
-
-
-    private static class calEmbryoData {
-        int n;
-
-        int flSatCount;
-        int afSatCount;
-        int redSatCount;
-
-        int[] xc;
-        int[] yc;
-
-        double[] flGausPixelVals;
-        double[] flPixelVals;
-        double[] afGausPixelVals;
-        double[] afPixelVals;
-        double[] redGausPixelVals;
-        double[] redPixelVals;
-
-        // Three channel method
-        public calEmbryoData(int n, int flSatCount, int afSatCount, int redSatCount, List<Integer> xc, List<Integer> yc,
-                             List<Double> flPixelVals, List<Double> flGausPixelVals,
-                             List<Double> afPixelVals, List<Double> afGausPixelVals,
-                             List<Double> redPixelVals, List<Double> redGausPixelVals) {
-
-            this.n = n;
-
-            this.flSatCount = flSatCount;
-            this.afSatCount = afSatCount;
-            this.redSatCount = redSatCount;
-
-            this.xc = new int[xc.size()];
-            this.yc = new int[yc.size()];
-            for (int i = 0; i < xc.size(); i++) this.xc[i] = xc.get(i);
-            for (int i = 0; i < yc.size(); i++) this.yc[i] = yc.get(i);
-
-            this.flPixelVals = new double[flPixelVals.size()];
-            this.flGausPixelVals = new double[flPixelVals.size()];
-            this.afPixelVals = new double[flPixelVals.size()];
-            this.afGausPixelVals = new double[flPixelVals.size()];
-            this.redPixelVals = new double[flPixelVals.size()];
-            this.redGausPixelVals = new double[flPixelVals.size()];
-            for (int i = 0; i < flPixelVals.size(); i++) this.flPixelVals[i] = flPixelVals.get(i);
-            for (int i = 0; i < flPixelVals.size(); i++) this.flGausPixelVals[i] = flGausPixelVals.get(i);
-            for (int i = 0; i < flPixelVals.size(); i++) this.afPixelVals[i] = afPixelVals.get(i);
-            for (int i = 0; i < flPixelVals.size(); i++) this.afGausPixelVals[i] = afGausPixelVals.get(i);
-            for (int i = 0; i < flPixelVals.size(); i++) this.redPixelVals[i] = redPixelVals.get(i);
-            for (int i = 0; i < flPixelVals.size(); i++) this.redGausPixelVals[i] = redGausPixelVals.get(i);
-
-        }
-
-        // Two channel method
-        public calEmbryoData(int n, int flSatCount, int afSatCount, List<Integer> xc, List<Integer> yc,
-                             List<Double> flPixelVals, List<Double> flGausPixelVals,
-                             List<Double> afPixelVals, List<Double> afGausPixelVals) {
-
-            this.n = n;
-
-            this.flSatCount = flSatCount;
-            this.afSatCount = afSatCount;
-
-            this.xc = new int[xc.size()];
-            this.yc = new int[yc.size()];
-            for (int i = 0; i < xc.size(); i++) this.xc[i] = xc.get(i);
-            for (int i = 0; i < yc.size(); i++) this.yc[i] = yc.get(i);
-
-            this.flPixelVals = new double[flPixelVals.size()];
-            this.flGausPixelVals = new double[flPixelVals.size()];
-            this.afPixelVals = new double[flPixelVals.size()];
-            this.afGausPixelVals = new double[flPixelVals.size()];
-            for (int i = 0; i < flPixelVals.size(); i++) this.flPixelVals[i] = flPixelVals.get(i);
-            for (int i = 0; i < flPixelVals.size(); i++) this.flGausPixelVals[i] = flGausPixelVals.get(i);
-            for (int i = 0; i < flPixelVals.size(); i++) this.afPixelVals[i] = afPixelVals.get(i);
-            for (int i = 0; i < flPixelVals.size(); i++) this.afGausPixelVals[i] = afGausPixelVals.get(i);
-
-        }
-    }
-
-
-    private calEmbryoData calGetPixels2(ImagePlus imp, Roi roi) {
-
-        // If movie, just use currently selected frame
-        int nFrames = imp.getNFrames();
-        if (nFrames > 1)
-            IJ.run(imp, "Reduce Dimensionality...", "channels");
-
-        // Get channels
-        ImagePlus[] channels = ChannelSplitter.split(imp);
-        ImagePlus flImp = channels[calChannelsHashTable.get(calFlChannel)];
-        ImagePlus afImp = channels[calChannelsHashTable.get(calAfChannel)];
-
-        // Convert to 32-bit
-        IJ.run(flImp, "32-bit", "");
-        IJ.run(afImp, "32-bit", "");
-
-        // Process channels
-        ImagePlus flImp2 = flImp.duplicate();
-        IJ.run(flImp2, "Gaussian Blur...", "sigma=" + calGaussianText.getText());
-        ImagePlus afImp2 = afImp.duplicate();
-        IJ.run(afImp2, "Gaussian Blur...", "sigma=" + calGaussianText.getText());
-
-        // Set up results containers
-        int n = 0;
-        int flSatCount = 0;
-        int afSatCount = 0;
-        List<Integer> xc = new ArrayList<>();
-        List<Integer> yc = new ArrayList<>();
-        List<Double> flPixelVals = new ArrayList<>();
-        List<Double> flGausPixelVals = new ArrayList<>();
-        List<Double> afPixelVals = new ArrayList<>();
-        List<Double> afGausPixelVals = new ArrayList<>();
-
-        // Get ImageProcessor
-        ImageProcessor flImProc = flImp.getProcessor();
-        ImageProcessor flImProc2 = flImp2.getProcessor();
-        ImageProcessor afImProc = afImp.getProcessor();
-        ImageProcessor afImProc2 = afImp2.getProcessor();
-
-        // Collect pixel values
-        for (int y = 0; y < flImp.getDimensions()[1]; y++) {
-            for (int x = 0; x < flImp.getDimensions()[0]; x++) {
-                if (roi.contains(x, y)) {
-                    n += 1;
-                    xc.add(x);
-                    yc.add(y);
-                    flPixelVals.add((double) flImProc.getPixelValue(x, y));
-                    flGausPixelVals.add((double) flImProc2.getPixelValue(x, y));
-                    afPixelVals.add((double) afImProc.getPixelValue(x, y));
-                    afGausPixelVals.add((double) afImProc2.getPixelValue(x, y));
-
-//                    // Check if saturated
-//                    if (flImp.getPixel(x, y)[0] == 65535) flSatCount += 1;
-//                    if (afImp.getPixel(x, y)[0] == 65535) afSatCount += 1;
-
-                }
-            }
-        }
-        return new calEmbryoData(n, flSatCount, afSatCount, xc, yc, flPixelVals, flGausPixelVals,
-                afPixelVals, afGausPixelVals);
-    }
-
-
-    private calEmbryoData calGetPixels3(ImagePlus imp, Roi roi) {
-
-        // If movie, just use currently selected frame
-        int nFrames = imp.getNFrames();
-        if (nFrames > 1)
-            IJ.run(imp, "Reduce Dimensionality...", "channels");
-
-        // Get channels
-        ImagePlus[] channels = ChannelSplitter.split(imp);
-        ImagePlus flImp = channels[calChannelsHashTable.get(calFlChannel)];
-        ImagePlus afImp = channels[calChannelsHashTable.get(calAfChannel)];
-        ImagePlus redImp = channels[calChannelsHashTable.get(calRedChannel)];
-
-        // Convert to 32-bit
-        IJ.run(flImp, "32-bit", "");
-        IJ.run(afImp, "32-bit", "");
-        IJ.run(redImp, "32-bit", "");
-
-        // Process channels
-        ImagePlus flImp2 = flImp.duplicate();
-        IJ.run(flImp2, "Gaussian Blur...", "sigma=" + calGaussianText.getText());
-        ImagePlus afImp2 = afImp.duplicate();
-        IJ.run(afImp2, "Gaussian Blur...", "sigma=" + calGaussianText.getText());
-        ImagePlus redImp2 = redImp.duplicate();
-        IJ.run(redImp2, "Gaussian Blur...", "sigma=" + calGaussianText.getText());
-
-        // Set up results containers
-        int n = 0;
-        int flSatCount = 0;
-        int afSatCount = 0;
-        int redSatCount = 0;
-        List<Integer> xc = new ArrayList<>();
-        List<Integer> yc = new ArrayList<>();
-        List<Double> flPixelVals = new ArrayList<>();
-        List<Double> flGausPixelVals = new ArrayList<>();
-        List<Double> afPixelVals = new ArrayList<>();
-        List<Double> afGausPixelVals = new ArrayList<>();
-        List<Double> redPixelVals = new ArrayList<>();
-        List<Double> redGausPixelVals = new ArrayList<>();
-
-        // Get ImageProcessor
-        ImageProcessor flImProc = flImp.getProcessor();
-        ImageProcessor flImProc2 = flImp2.getProcessor();
-        ImageProcessor afImProc = afImp.getProcessor();
-        ImageProcessor afImProc2 = afImp2.getProcessor();
-        ImageProcessor redImProc = redImp.getProcessor();
-        ImageProcessor redImProc2 = redImp2.getProcessor();
-
-        // Collect pixel values
-        for (int y = 0; y < flImp.getDimensions()[1]; y++) {
-            for (int x = 0; x < flImp.getDimensions()[0]; x++) {
-                if (roi.contains(x, y)) {
-                    n += 1;
-                    xc.add(x);
-                    yc.add(y);
-                    flPixelVals.add((double) flImProc.getPixelValue(x, y));
-                    flGausPixelVals.add((double) flImProc2.getPixelValue(x, y));
-                    afPixelVals.add((double) afImProc.getPixelValue(x, y));
-                    afGausPixelVals.add((double) afImProc2.getPixelValue(x, y));
-                    redPixelVals.add((double) redImProc.getPixelValue(x, y));
-                    redGausPixelVals.add((double) redImProc2.getPixelValue(x, y));
-
-//                    // Check if saturated
-//                    if (flImp.getPixel(x, y)[0] == 65535) flSatCount += 1;
-//                    if (afImp.getPixel(x, y)[0] == 65535) afSatCount += 1;
-//                    if (redImp.getPixel(x, y)[0] == 65535) redSatCount += 1;
-
-                }
-            }
-        }
-        return new calEmbryoData(n, flSatCount, afSatCount, redSatCount, xc, yc, flPixelVals, flGausPixelVals,
-                afPixelVals, afGausPixelVals, redPixelVals, redGausPixelVals);
-    }
-
-
-    private void calRunRegression2(double[] flVals, double[] afVals) {
-
-        // REGRESSION
-
-        // Set up matrices for regression
-        double[][] x = new double[flVals.length][2];
-        for (int i = 0; i < flVals.length; i++) {
-            x[i][0] = 1.;
-            x[i][1] = afVals[i];
-        }
-        Matrix matrixX = new Matrix(x);
-        Matrix matrixY = new Matrix(flVals, flVals.length);
-
-        // Perform regression
-        QRDecomposition qr = new QRDecomposition(matrixX);
-        Matrix beta = qr.solve(matrixY);
-
-        // Get parameters
-        cal_c = beta.get(0, 0);
-        cal_m1 = beta.get(1, 0);
-        cal_m2 = 0;
-
-
-        // CALCULATE R SQUARED
-
-        // mean of y[] values
-        double sum = 0.0;
-        for (double v : flVals) sum += v;
-        double mean = sum / flVals.length;
-
-        // total variation to be accounted for
-        double sst = 0.0;
-        for (double v : flVals) {
-            double dev = v - mean;
-            sst += dev * dev;
-        }
-
-        // variation not accounted for
-        Matrix residuals = matrixX.times(beta).minus(matrixY);
-        double sse = residuals.norm2() * residuals.norm2();
-
-        // R squared
-        R2 = 1.0 - sse / sst;
-
-    }
-
-
-    private void calRunRegression3(double[] flVals, double[] afVals, double[] redVals) {
-        // REGRESSION
-
-        // Set up matrices for regression
-        double[][] x = new double[flVals.length][3];
-        for (int i = 0; i < flVals.length; i++) {
-            x[i][0] = 1.;
-            x[i][1] = afVals[i];
-            x[i][2] = redVals[i];
-        }
-        Matrix matrixX = new Matrix(x);
-        Matrix matrixY = new Matrix(flVals, flVals.length);
-
-        // Perform regression
-        QRDecomposition qr = new QRDecomposition(matrixX);
-        Matrix beta = qr.solve(matrixY);
-
-        // Get parameters
-        cal_c = beta.get(0, 0);
-        cal_m1 = beta.get(1, 0);
-        cal_m2 = beta.get(2, 0);
-
-
-        // CALCULATE R SQUARED
-
-        // mean of y[] values
-        double sum = 0.0;
-        for (double v : flVals) sum += v;
-        double mean = sum / flVals.length;
-
-        // total variation to be accounted for
-        double sst = 0.0;
-        for (double v : flVals) {
-            double dev = v - mean;
-            sst += dev * dev;
-        }
-
-        // variation not accounted for
-        Matrix residuals = matrixX.times(beta).minus(matrixY);
-        double sse = residuals.norm2() * residuals.norm2();
-
-        // R squared
-        R2 = 1.0 - sse / sst;
-
+        calProfileButton.setEnabled(true);
+        timings.finish();
     }
 
 
-    private void calPlotRegression2(calEmbryoData[] allEmbryoData) {
+    private void calPlotRegression2() {
 
         // Set up plot
         Plot plot = new Plot("Linear model", "Linear model: c + m1 * (Predictor 1)", "Primary channel");
-        Color[] colours = {Color.blue, Color.green, Color.red, Color.cyan, Color.magenta, Color.orange, Color.pink,
-                Color.gray, Color.lightGray, Color.gray};
-
-        // Loop through embryos
-        for (int j = 0; j < allEmbryoData.length; j++) {
-
-            // Calculate ypred
-            double[] ypred = new double[allEmbryoData[j].flPixelVals.length];
-            for (int i = 0; i < allEmbryoData[j].flPixelVals.length; i++)
-                ypred[i] = cal_c + cal_m1 * allEmbryoData[j].afGausPixelVals[i];
-
-            // Plot points
-            plot.setColor(colours[j]);
-            plot.addPoints(ypred, allEmbryoData[j].flGausPixelVals, Plot.DOT);
-
-        }
-
-        // Add legend
-        plot.setColor("black");
-        StringBuilder legend = new StringBuilder();
-        for (String i : calSelectedImageTitles) {
-            legend.append(i);
-            legend.append("\n");
-        }
-        plot.addLegend(legend.toString());
+        saibrDensityPlot density = calHistogram.density(CAL_PLOT_BINS, cal_c, cal_m1, 0);
+        density.draw(plot);
 
         // Plot line
-        plot.addPoints(new double[]{0, 65536}, new double[]{0, 65536}, Plot.LINE);
+        double[] limits = density.getLimits();
+        plot.setColor("black");
+        plot.addPoints(new double[]{limits[0], limits[1]}, new double[]{limits[0], limits[1]}, Plot.LINE);
 
         // Add equation
         plot.addLabel(0.05, 0.1, "Primary channel = c + m1 * (Predictor 1)\nc = " +
@@ -1076,38 +1020,17 @@ public class saibr extends PlugInDialog implements ActionListener {
     }
 
 
-    private void calPlotRegression3(calEmbryoData[] allEmbryoData) {
+    private void calPlotRegression3() {
 
         // Set up plot
         Plot plot = new Plot("Linear model", "Linear model: c + m1 * (Predictor 1) + m2 * (Predictor 2)", "Primary channel");
-        Color[] colours = {Color.blue, Color.green, Color.red, Color.cyan, Color.magenta, Color.orange, Color.pink,
-                Color.gray, Color.lightGray, Color.gray};
-
-        // Loop through embryos
-        for (int j = 0; j < allEmbryoData.length; j++) {
-
-            // Calculate ypred
-            double[] ypred = new double[allEmbryoData[j].flPixelVals.length];
-            for (int i = 0; i < allEmbryoData[j].flPixelVals.length; i++)
-                ypred[i] = cal_c + cal_m1 * allEmbryoData[j].afGausPixelVals[i] + cal_m2 * allEmbryoData[j].redGausPixelVals[i];
-
-            // Plot points
-            plot.setColor(colours[j]);
-            plot.addPoints(ypred, allEmbryoData[j].flGausPixelVals, Plot.DOT);
-
-        }
-
-        // Add legend
-        plot.setColor("black");
-        StringBuilder legend = new StringBuilder();
-        for (String i : calSelectedImageTitles) {
-            legend.append(i);
-            legend.append("\n");
-        }
-        plot.addLegend(legend.toString());
+        saibrDensityPlot density = calHistogram.density(CAL_PLOT_BINS, cal_c, cal_m1, cal_m2);
+        density.draw(plot);
 
         // Plot line
-        plot.addPoints(new double[]{0, 65536}, new double[]{0, 65536}, Plot.LINE);
+        double[] limits = density.getLimits();
+        plot.setColor("black");
+        plot.addPoints(new double[]{limits[0], limits[1]}, new double[]{limits[0], limits[1]}, Plot.LINE);
 
         // Add equation
         plot.addLabel(0.05, 0.1, "Primary channel = c + m1 * (Predictor 1) + m2 * (Predictor 2)\nc = " +
@@ -1124,29 +1047,13 @@ public class saibr extends PlugInDialog implements ActionListener {
 
     private void calShowResids2(ImagePlus imp, String title) {
         // Get channels
-        ImagePlus[] channels = ChannelSplitter.split(imp);
-
-        // Get channels
-        ImagePlus flImp = channels[calChannelsHashTable.get(calFlChannel)];
-        ImagePlus afImp = channels[calChannelsHashTable.get(calAfChannel)];
+        ImageStack flStack = new saibrChannelStack(imp, calParams.primary);
+        ImageStack afStack = new saibrChannelStack(imp, calParams.predictor1);
 
-        // Duplicate af image
-        ImagePlus afImp3 = afImp.duplicate();
-
-        // Calculate autofluorescence
-        IJ.run(afImp3, "32-bit", "");
-        IJ.run(afImp3, "Multiply...", "value=" + cal_m1 + " stack");
-        IJ.run(afImp3, "Add...", "value=" + cal_c + " stack");
-
-        // Perform subtraction -> resids
-        ImageCalculator ic = new ImageCalculator();
-        ImagePlus CorrectedImp = ic.run("Subtract create 32-bit stack", flImp, afImp3);
-
-        // Close calculated AF image
-        afImp3.close();
-
-        // Set title
-        CorrectedImp.setTitle("Residuals of " + title);
+        // Calculate resids
+        ImageStack residsStack = saibrCorrection.correctStack(flStack, afStack, null,
+                cal_c, cal_m1, 0, Prefs.getThreads());
+        ImagePlus CorrectedImp = new ImagePlus("Residuals of " + title, residsStack);
 
         // Show residuals
         CorrectedImp.show();
@@ -1156,38 +1063,46 @@ public class saibr extends PlugInDialog implements ActionListener {
 
     private void calShowResids3(ImagePlus imp, String title) {
         // Get channels
-        ImagePlus[] channels = ChannelSplitter.split(imp);
-
-        // Get images
-        ImagePlus flImp = channels[calChannelsHashTable.get(calFlChannel)];
-        ImagePlus afImp = channels[calChannelsHashTable.get(calAfChannel)];
-        ImagePlus redImp = channels[calChannelsHashTable.get(calRedChannel)];
+        ImageStack flStack = new saibrChannelStack(imp, calParams.primary);
+        ImageStack afStack = new saibrChannelStack(imp, calParams.predictor1);
+        ImageStack redStack = new saibrChannelStack(imp, calParams.predictor2);
 
-        // Duplicate images
-        ImagePlus afImp3 = afImp.duplicate();
-        ImagePlus redImp3 = redImp.duplicate();
+        // Calculate resids
+        ImageStack residsStack = saibrCorrection.correctStack(flStack, afStack, redStack,
+                cal_c, cal_m1, cal_m2, Prefs.getThreads());
+        ImagePlus CorrectedImp = new ImagePlus("Residuals of " + title, residsStack);
 
-        // Calculate autofluorescence
-        IJ.run(afImp3, "32-bit", "");
-        IJ.run(afImp3, "Multiply...", "value=" + cal_m1 + " stack");
-        IJ.run(afImp3, "Add...", "value=" + cal_c + " stack");
-        IJ.run(redImp3, "32-bit", "");
-        IJ.run(redImp3, "Multiply...", "value=" + cal_m2 + " stack");
-
-        // Perform subtraction -> resids
-        ImageCalculator ic = new ImageCalculator();
-        ImagePlus temp = ic.run("Add create 32-bit stack", afImp3, redImp3);
-        ImagePlus CorrectedImp = ic.run("Subtract create 32-bit stack", flImp, temp);
+        // Show residuals
+        CorrectedImp.show();
+    }
 
-        // Close images
-        afImp3.close();
-        redImp3.close();
 
-        // Set title
-        CorrectedImp.setTitle("Residuals of " + title);
+    private void calSaveProfile() {
+        SaveDialog sd = new SaveDialog("Save calibration profile", "calibration", saibrProfile.EXTENSION);
+        if (sd.getFileName() == null)
+            return;
 
-        // Show residuals
-        CorrectedImp.show();
+        // Collect calibration
+        saibrProfile profile = new saibrProfile();
+        profile.flChannel = calFlChannel;
+        profile.afChannel = calAfChannel;
+        profile.redChannel = calRedChannel;
+        profile.sigma = cal_sigma;
+        profile.method = cal_method;
+        profile.c = cal_c;
+        profile.m1 = cal_m1;
+        profile.m2 = cal_m2;
+        profile.r2 = R2;
+        profile.regression = calRegression;
+        profile.frameCoefs = calFrameCoefs;
+        profile.frameRegressions = calFrameRegressions;
+
+        // Save
+        try {
+            profile.save(new File(sd.getDirectory(), sd.getFileName()));
+        } catch (IOException e) {
+            IJ.showMessage("ERROR: Could not save profile: " + e.getMessage());
+        }
     }
 
 
@@ -1197,45 +1112,105 @@ public class saibr extends PlugInDialog implements ActionListener {
     }
 
 
-    private void calFillTable(calEmbryoData[] allEmbryoData) {
-        calResultsTable = new ResultsTable();
-        for (int j = 0; j < allEmbryoData.length; j++) {
-            for (int i = 0; i < allEmbryoData[j].flPixelVals.length; i++) {
+    private void calShowImageTable() {
+        ResultsTable table = new ResultsTable();
+        for (int i = 0; i < calImageRegressions.length; i++) {
+            table.incrementCounter();
+            table.addValue("image", calSelectedImageTitles.get(i));
+            table.addValue("n_pixels", calImageRegressions[i].getN());
+            table.addValue("R2", calImageRegressions[i].r2(cal_c, cal_m1, cal_m2));
+        }
+        table.show("SAIBR calibration images");
+    }
 
-                // Increment counter
-                calResultsTable.incrementCounter();
 
-                // Add embryo ID
-                calResultsTable.addValue("image_id", j);
+    private void calExportPixels() {
 
-                // Add coordinates
-                calResultsTable.addValue("x_position", allEmbryoData[j].xc[i]);
-                calResultsTable.addValue("y_position", allEmbryoData[j].yc[i]);
+        // Choose format and destination
+        GenericDialog gd = new GenericDialog("Export pixel data");
+        String[] formats = {"CSV", "NumPy (one .npy file per column)"};
+        gd.addChoice("Format:", formats, formats[0]);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return;
+        boolean csv = gd.getNextChoiceIndex() == 0;
+        File destination;
+        if (csv) {
+            SaveDialog sd = new SaveDialog("Export pixel data", "pixel_data", ".csv");
+            if (sd.getFileName() == null)
+                return;
+            destination = new File(sd.getDirectory(), sd.getFileName());
+        } else {
+            String directory = new DirectoryChooser("Select folder for .npy files").getDirectory();
+            if (directory == null)
+                return;
+            destination = new File(directory);
+        }
 
-                // Add pixel values
-                calResultsTable.addValue("primary_raw", allEmbryoData[j].flPixelVals[i]);
-                calResultsTable.addValue("PRIMARY_GAUS", allEmbryoData[j].flGausPixelVals[i]);
-                calResultsTable.addValue("predictor1_raw", allEmbryoData[j].afPixelVals[i]);
-                calResultsTable.addValue("predictor1_gaus", allEmbryoData[j].afGausPixelVals[i]);
-                if (!Objects.equals(calRedChannel, "<None>")) {
-                    calResultsTable.addValue("predictor2_raw", allEmbryoData[j].redPixelVals[i]);
-                    calResultsTable.addValue("predictor2_gaus", allEmbryoData[j].redGausPixelVals[i]);
+        // Channels and blur of the calibration, fixed before the export starts
+        saibrEngine.Params params = calParams.copy();
+        int fl = params.primary;
+        int af = params.predictor1;
+        int red = params.predictor2;
+        double sigma = params.sigma;
+
+        // Columns
+        boolean useRed = params.useRed();
+        String[] columns = useRed
+                ? new String[]{"image_id", "x_position", "y_position", "primary_raw", "PRIMARY_GAUS", "predictor1_raw",
+                "predictor1_gaus", "predictor2_raw", "predictor2_gaus", "LINEAR_MODEL", "RESIDUALS"}
+                : new String[]{"image_id", "x_position", "y_position", "primary_raw", "PRIMARY_GAUS", "predictor1_raw",
+                "predictor1_gaus", "LINEAR_MODEL", "RESIDUALS"};
+        boolean[] integer = new boolean[columns.length];
+        integer[0] = integer[1] = integer[2] = true;
+
+        // Stream each image to disk in the background, extracting its current plane again
+        ImagePlus[] imps = calSourceImages.clone();
+        Roi[] rois = calRois.clone();
+        int[] slices = new int[imps.length];
+        int[] frames = new int[imps.length];
+        for (int j = 0; j < imps.length; j++) {
+            slices[j] = imps[j].getZ();
+            frames[j] = imps[j].getT();
+        }
+        double c = cal_c;
+        double m1 = cal_m1;
+        double m2 = cal_m2;
+        new Thread(() -> {
+            double[] row = new double[columns.length];
+            try (saibrPixelExport export = csv ? saibrPixelExport.openCsv(destination, columns, integer)
+                    : saibrPixelExport.openNpy(destination, columns, integer)) {
+                for (int j = 0; j < imps.length; j++) {
+                    IJ.showProgress(j, imps.length);
+                    saibrRoiPixels data = saibrRoiPixels.extract(imps[j], rois[j], slices[j], frames[j], fl, af,
+                            red, sigma, true, null);
+                    for (int i = 0; i < data.n; i++) {
+                        int k = 0;
+                        row[k++] = j;
+                        row[k++] = data.xc[i];
+                        row[k++] = data.yc[i];
+                        row[k++] = data.flPixelVals[i];
+                        row[k++] = data.flGausPixelVals[i];
+                        row[k++] = data.afPixelVals[i];
+                        row[k++] = data.afGausPixelVals[i];
+                        double pred = c + m1 * data.afGausPixelVals[i];
+                        if (useRed) {
+                            row[k++] = data.redPixelVals[i];
+                            row[k++] = data.redGausPixelVals[i];
+                            pred += m2 * data.redGausPixelVals[i];
+                        }
+                        row[k++] = pred;
+                        row[k] = data.flGausPixelVals[i] - pred;
+                        export.addRow(row);
+                    }
                 }
-
-                // Add predicted
-                double pred = cal_c + cal_m1 * allEmbryoData[j].afGausPixelVals[i];
-                calResultsTable.addValue("LINEAR_MODEL", pred);
-
-                // Add residuals
-                double resid = allEmbryoData[j].flGausPixelVals[i] - pred;
-                calResultsTable.addValue("RESIDUALS", resid);
+                IJ.showStatus("Pixel data exported to " + destination);
+            } catch (IOException e) {
+                IJ.showMessage("ERROR: Could not export pixel data: " + e.getMessage());
+            } finally {
+                IJ.showProgress(1.0);
             }
-        }
-    }
-
-
-    private void calShowResTable() {
-        calResultsTable.show("Pixel data");
+        }, "SAIBR export").start();
     }
 
     /////////////// CORRECTION FUNCTIONS ///////////////
@@ -1312,25 +1287,11 @@ public class saibr extends PlugInDialog implements ActionListener {
 
     private void runRun() {
 
-        // Get image names
+        // Get image name and parameters
         String runImageName = (String) runImageBox.getSelectedItem();
-        runFlChannel = (String) runFlChannelBox.getSelectedItem();
-        runAfChannel = (String) runAfChannelBox.getSelectedItem();
-        runRedChannel = (String) runRedChannelBox.getSelectedItem();
-
-        // Checking channel requirements
-        if (Objects.equals(runFlChannel, runAfChannel)) {
-            IJ.showMessage("ERROR: Primary and Predictor 1 channels must be different");
+        saibrEngine.Params params = runGetParams();
+        if (params == null)
             return;
-        }
-        if (Objects.equals(runAfChannel, runRedChannel)) {
-            IJ.showMessage("ERROR: Predictor 1 and Predictor 2 channels must be different");
-            return;
-        }
-        if (Objects.equals(runRedChannel, runFlChannel)) {
-            IJ.showMessage("ERROR: Primary and Predictor 2 channels must be different");
-            return;
-        }
 
         // Checking image is still open
         int[] windowList = WindowManager.getIDList();
@@ -1347,95 +1308,299 @@ public class saibr extends PlugInDialog implements ActionListener {
             return;
         }
 
+        // Checking output options
+        if (runVirtualCheckbox.isSelected() && runFileCheckbox.isSelected()) {
+            IJ.showMessage("ERROR: Choose either virtual output or writing to file");
+            return;
+        }
+        if (runVirtualCheckbox.isSelected() && params.outputType != saibrCorrection.FLOAT) {
+            IJ.showMessage("ERROR: Virtual output is 32-bit float only");
+            return;
+        }
+        if (!runFileCheckbox.isSelected() && params.outputType == saibrCorrection.HALF_FLOAT) {
+            IJ.showMessage("ERROR: Half float output can only be written to file");
+            return;
+        }
+
+        // Get output file
+        File output = null;
+        if (runFileCheckbox.isSelected()) {
+            SaveDialog sd = new SaveDialog("Save corrected image", "Result of " + runImageName, ".tif");
+            if (sd.getFileName() == null)
+                return;
+            output = new File(sd.getDirectory(), sd.getFileName());
+        }
+
         // Get image
         ImagePlus imp = WindowManager.getImage(runHashTable.get(runImageName));
-
-        // Duplicate image
-        ImagePlus imp2 = imp.duplicate();
+        long nPixels = (long) imp.getWidth() * imp.getHeight() * imp.getStackSize();
+        timings = new saibrTimings("correction");
 
 //        // Checking image bit depth
-//        int bitDepth = imp2.getBitDepth();
+//        int bitDepth = imp.getBitDepth();
 //        if (bitDepth != 16) {
 //            IJ.showMessage("ERROR: 16-bit image required");
 //            return;
 //        }
 
-        // Run correction
-        if (Objects.equals(runRedChannel, "<None>"))
-            runRunCorrection2(imp2, runImageName);
-        else
-            runRunCorrection3(imp2, runImageName);
+        // Run correction, reading the original image. Virtual output reads planes as they are viewed, and
+        // file output is written straight into the TIFF, so that it is never held on the heap
+        try {
+            if (runVirtualCheckbox.isSelected()) {
+                timings.start("virtual");
+                ImagePlus correctedImp = saibrEngine.correctVirtual(imp, params);
+                correctedImp.show();
+                timings.stop(nPixels);
+            } else if (output != null) {
+                saibrEngine.correct(imp, params, output, timings);
+                IJ.showStatus("SAIBR: written " + output);
+            } else {
+                ImagePlus correctedImp = saibrEngine.correct(imp, params, timings);
+                timings.start("display");
+                correctedImp.show();
+                timings.stop(nPixels);
+            }
+        } catch (IOException e) {
+            IJ.showMessage("ERROR: Could not write " + output.getName() + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            IJ.showMessage("ERROR: " + e.getMessage());
+        }
+        timings.finish();
 
     }
 
 
-    private void runRunCorrection2(ImagePlus imp, String title) {
+    // Engine parameters from the window, or null with an error message if an entry is invalid
+    private saibrEngine.Params runGetParams() {
 
         // Get channels
-        ImagePlus[] channels = ChannelSplitter.split(imp);
-        ImagePlus flImp = channels[runChannelsHashTable.get(runFlChannel)];
-        ImagePlus afImp = channels[runChannelsHashTable.get(runAfChannel)];
+        String flChannel = (String) runFlChannelBox.getSelectedItem();
+        String afChannel = (String) runAfChannelBox.getSelectedItem();
+        String redChannel = (String) runRedChannelBox.getSelectedItem();
 
-        // Duplicate af image
-        ImagePlus afImp3 = afImp.duplicate();
+        // Checking channel requirements
+        if (Objects.equals(flChannel, afChannel)) {
+            IJ.showMessage("ERROR: Primary and Predictor 1 channels must be different");
+            return null;
+        }
+        if (Objects.equals(afChannel, redChannel)) {
+            IJ.showMessage("ERROR: Predictor 1 and Predictor 2 channels must be different");
+            return null;
+        }
+        if (Objects.equals(redChannel, flChannel)) {
+            IJ.showMessage("ERROR: Primary and Predictor 2 channels must be different");
+            return null;
+        }
 
-        // Calculate autofluorescence
-        IJ.run(afImp3, "32-bit", "");
-        IJ.run(afImp3, "Multiply...", "value=" + runM1Text.getText() + " stack");
-        IJ.run(afImp3, "Add...", "value=" + runCText.getText() + " stack");
+        // Get coefficients
+        boolean useRed = !Objects.equals(redChannel, "<None>");
+        double c = Tools.parseDouble(runCText.getText());
+        double m1 = Tools.parseDouble(runM1Text.getText());
+        double m2 = useRed ? Tools.parseDouble(runM2Text.getText()) : 0;
+        if (Double.isNaN(c) || Double.isNaN(m1) || Double.isNaN(m2)) {
+            IJ.showMessage("ERROR: c, m1 and m2 must be numbers");
+            return null;
+        }
+        int nThreads = runGetThreads();
+        if (nThreads < 1) {
+            IJ.showMessage("ERROR: Threads must be a positive integer");
+            return null;
+        }
 
-        // Perform subtraction
-        ImageCalculator ic = new ImageCalculator();
-        ImagePlus correctedImp = ic.run("Subtract create 32-bit stack", flImp, afImp3);
+        saibrEngine.Params params = new saibrEngine.Params();
+        params.primary = runChannelsHashTable.get(flChannel) + 1;
+        params.predictor1 = runChannelsHashTable.get(afChannel) + 1;
+        params.predictor2 = useRed ? runChannelsHashTable.get(redChannel) + 1 : 0;
+        params.c = c;
+        params.m1 = m1;
+        params.m2 = m2;
+        params.frameCoefs = runFramesCheckbox.isSelected() ? calFrameCoefs : null;
+        params.outputType = runOutputBox.getSelectedIndex();
+        params.threads = nThreads;
+        return params;
+    }
 
-        // Close calculated AF image
-        afImp3.close();
 
-        // Rename image
-        correctedImp.setTitle("Result of " + title);
+    private void runLoadProfile() {
+        OpenDialog od = new OpenDialog("Load calibration profile");
+        if (od.getFileName() == null)
+            return;
 
-        // Show image
-        correctedImp.show();
+        // Load
+        saibrProfile profile;
+        try {
+            profile = saibrProfile.load(new File(od.getDirectory(), od.getFileName()));
+        } catch (IOException e) {
+            IJ.showMessage("ERROR: Could not load profile: " + e.getMessage());
+            return;
+        }
 
+        // Use as current calibration
+        calFlChannel = profile.flChannel;
+        calAfChannel = profile.afChannel;
+        calRedChannel = profile.redChannel;
+        cal_sigma = profile.sigma;
+        cal_method = profile.method;
+        cal_c = profile.c;
+        cal_m1 = profile.m1;
+        cal_m2 = profile.m2;
+        R2 = profile.r2;
+        calRegression = profile.regression;
+        calFrameCoefs = profile.frameCoefs;
+        calFrameRegressions = profile.frameRegressions;
+
+        // Update window, at full precision
+        runFlChannelBox.setSelectedItem(calFlChannel);
+        runAfChannelBox.setSelectedItem(calAfChannel);
+        runRedChannelBox.setSelectedItem(calRedChannel);
+        runCText.setText(String.valueOf(cal_c));
+        runM1Text.setText(String.valueOf(cal_m1));
+        runM2Text.setText(String.valueOf(cal_m2));
+        runFramesCheckbox.setSelected(calFrameCoefs != null);
+        runFramesCheckbox.setEnabled(calFrameCoefs != null);
+    }
+
+
+    private void runBatch() {
+
+        // Get parameters
+        saibrEngine.Params params = runGetParams();
+        if (params == null)
+            return;
 
+        // Get directories
+        String inputDir = new DirectoryChooser("Select input folder").getDirectory();
+        if (inputDir == null)
+            return;
+        String outputDir = new DirectoryChooser("Select output folder").getDirectory();
+        if (outputDir == null)
+            return;
+
+        // Run in background
+        new Thread(() -> {
+            try {
+                int n = saibrBatch.run(new File(inputDir), new File(outputDir), params);
+                IJ.showStatus("SAIBR batch: " + n + " image(s) written to " + outputDir);
+            } catch (RuntimeException e) {
+                IJ.showMessage("ERROR: " + e.getMessage());
+            }
+        }, "SAIBR batch").start();
     }
 
 
-    private void runRunCorrection3(ImagePlus imp, String title) {
+    private void runCorrectFile() {
 
-        // Get channels
-        ImagePlus[] channels = ChannelSplitter.split(imp);
-        ImagePlus flImp = channels[runChannelsHashTable.get(runFlChannel)];
-        ImagePlus afImp = channels[runChannelsHashTable.get(runAfChannel)];
-        ImagePlus redImp = channels[runChannelsHashTable.get(runRedChannel)];
+        // Get parameters
+        saibrEngine.Params params = runGetParams();
+        if (params == null)
+            return;
+
+        // Get files
+        OpenDialog od = new OpenDialog("Select uncompressed TIFF to correct");
+        if (od.getFileName() == null)
+            return;
+        File input = new File(od.getDirectory(), od.getFileName());
+        SaveDialog sd = new SaveDialog("Save corrected TIFF", "Result of " + od.getFileName(), ".tif");
+        if (sd.getFileName() == null)
+            return;
+        File output = new File(sd.getDirectory(), sd.getFileName());
+
+        // Memory budget
+        GenericDialog gd = new GenericDialog("Correct TIFF on disk");
+        gd.addNumericField("Memory for strips:", 256, 0, 6, "MB");
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return;
+        double memory = gd.getNextNumber();
+        if (Double.isNaN(memory) || memory <= 0) {
+            IJ.showMessage("ERROR: Memory must be a positive number");
+            return;
+        }
+
+        // Run in background
+        new Thread(() -> {
+            try {
+                IJ.showStatus("SAIBR: correcting " + input.getName());
+                saibrEngine.correctFile(input, output, params, (long) (memory * 1024 * 1024));
+                IJ.showStatus("SAIBR: written " + output);
+            } catch (IOException | RuntimeException e) {
+                IJ.showMessage("ERROR: " + e.getMessage());
+            }
+        }, "SAIBR disk correction").start();
+    }
+
+
+    // Starts, updates or stops the live preview to match the window. Incomplete entries are ignored
+    private void runUpdatePreview() {
 
-        // Duplicate images
-        ImagePlus afImp3 = afImp.duplicate();
-        ImagePlus redImp3 = redImp.duplicate();
+        // Preview window closed by the user
+        if (runPreview != null && runPreview.isStopped()) {
+            runPreview = null;
+            runPreviewCheckbox.setSelected(false);
+            return;
+        }
+        if (!runPreviewCheckbox.isSelected()) {
+            runStopPreview();
+            return;
+        }
 
-        // Calculate autofluorescence
-        IJ.run(afImp3, "32-bit", "");
-        IJ.run(afImp3, "Multiply...", "value=" + runM1Text.getText() + " stack");
-        IJ.run(afImp3, "Add...", "value=" + runCText.getText() + " stack");
-        IJ.run(redImp3, "32-bit", "");
-        IJ.run(redImp3, "Multiply...", "value=" + runM2Text.getText() + " stack");
+        // Get image and channels
+        String imageName = (String) runImageBox.getSelectedItem();
+        String flChannel = (String) runFlChannelBox.getSelectedItem();
+        String afChannel = (String) runAfChannelBox.getSelectedItem();
+        String redChannel = (String) runRedChannelBox.getSelectedItem();
+        if (imageName == null || flChannel == null || afChannel == null || redChannel == null
+                || !runHashTable.containsKey(imageName))
+            return;
+        if (Objects.equals(flChannel, afChannel) || Objects.equals(afChannel, redChannel)
+                || Objects.equals(redChannel, flChannel))
+            return;
+        ImagePlus imp = WindowManager.getImage(runHashTable.get(imageName));
+        if (imp == null)
+            return;
+        boolean useRed = !Objects.equals(redChannel, "<None>");
+        int fl = runChannelsHashTable.get(flChannel) + 1;
+        int af = runChannelsHashTable.get(afChannel) + 1;
+        int red = useRed ? runChannelsHashTable.get(redChannel) + 1 : 0;
+        if (Math.max(fl, Math.max(af, red)) > imp.getNChannels())
+            return;
 
-        // Perform subtraction
-        ImageCalculator ic = new ImageCalculator();
-        ImagePlus temp = ic.run("Add create 32-bit stack", afImp3, redImp3);
-        ImagePlus correctedImp = ic.run("Subtract create 32-bit stack", flImp, temp);
+        // Get coefficients
+        double c = Tools.parseDouble(runCText.getText());
+        double m1 = Tools.parseDouble(runM1Text.getText());
+        double m2 = useRed ? Tools.parseDouble(runM2Text.getText()) : 0;
+        if (Double.isNaN(c) || Double.isNaN(m1) || Double.isNaN(m2))
+            return;
 
-        // Close images
-        afImp3.close();
-        redImp3.close();
+        // Update preview, restarting it if the image has changed
+        if (runPreview != null && runPreview.getSource() != imp)
+            runStopPreview();
+        if (runPreview == null)
+            runPreview = new saibrPreview(imp);
+        runPreview.update(fl, af, red, runGetFrameCoefs(c, m1, m2));
+    }
 
-        // Rename image
-        correctedImp.setTitle("Result of " + title);
 
-        // Show image
-        correctedImp.show();
+    private void runStopPreview() {
+        if (runPreview != null) {
+            runPreview.stop();
+            runPreview = null;
+        }
+    }
+
+
+    private double[][] runGetFrameCoefs(double c, double m1, double m2) {
+        if (runFramesCheckbox.isSelected() && calFrameCoefs != null)
+            return calFrameCoefs;
+        return new double[][]{{c, m1, m2}};
+    }
 
 
+    private int runGetThreads() {
+        double nThreads = Tools.parseDouble(runThreadsText.getText());
+        if (Double.isNaN(nThreads) || nThreads != Math.floor(nThreads))
+            return -1;
+        return (int) nThreads;
     }
 
 }
@@ -1444,14 +1609,11 @@ public class saibr extends PlugInDialog implements ActionListener {
 /*
 
 To do:
-Ability to run with macros
 Force menu window to front when cal/run windows are closed
 Rename variables/functions and tidy up
 Thicken line on plot
 If calibrate window is closed and reopened, load previous configurations
 For run, add 'All' option to image list
-Switch to orthogonal distance regression (PCA)
-'Auto' option for selecting best sigma value. Think about best way to do this
 
 Bugs:
 Will crash if image is closed and subsequently reopened (window ID doesn't match up with name)
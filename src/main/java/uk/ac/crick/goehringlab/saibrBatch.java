@@ -0,0 +1,144 @@
+package uk.ac.crick.goehringlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+
+// Headless correction of every image in a directory. Reading runs on a separate thread connected by a
+// single-slot queue, so the next file is read while the current one is corrected and written straight to
+// its output TIFF, in the selected output type, with at most a couple of images in memory at once.
+class saibrBatch {
+
+    // End of stream marker
+    private static final ImagePlus END = new ImagePlus();
+
+    private saibrBatch() {
+    }
+
+
+    // Channels, coefficients, output type and threads from params. Returns number of images written
+    static int run(File inputDir, File outputDir, saibrEngine.Params params) {
+
+        // Checking parameters once, rather than failing on every image
+        saibrEngine.Params p = params.copy();
+        p.checkCorrection();
+        p.checkChannels();
+
+        // Checking directories
+        if (!inputDir.isDirectory())
+            throw new IllegalArgumentException("Input directory does not exist: " + inputDir);
+        if (sameFile(inputDir, outputDir))
+            throw new IllegalArgumentException("Input and output directories must be different");
+        if (!outputDir.isDirectory() && !outputDir.mkdirs())
+            throw new IllegalArgumentException("Cannot create output directory: " + outputDir);
+
+        // List input files
+        File[] files = inputDir.listFiles(f -> f.isFile() && !f.isHidden() && !f.getName().startsWith("."));
+        if (files == null)
+            files = new File[0];
+        Arrays.sort(files);
+        final File[] inputFiles = files;
+
+        // Queue
+        BlockingQueue<ImagePlus> toCorrect = new ArrayBlockingQueue<>(1);
+        int requiredChannels = Math.max(p.primary, Math.max(p.predictor1, p.predictor2));
+        Set<String> outputNames = new HashSet<>();
+
+        // Reader
+        Thread reader = new Thread(() -> {
+            try {
+                for (File f : inputFiles) {
+
+                    // Two inputs may not write to the same output file
+                    if (!outputNames.add(outputName(f.getName()).toLowerCase(Locale.ROOT))) {
+                        IJ.log("SAIBR batch: skipping " + f.getName() + " (output " + outputName(f.getName())
+                                + " is already written by another input)");
+                        continue;
+                    }
+                    ImagePlus imp;
+                    try {
+                        imp = IJ.openImage(f.getPath());
+                    } catch (RuntimeException | OutOfMemoryError e) {
+                        imp = null;
+                    }
+                    if (imp == null) {
+                        IJ.log("SAIBR batch: skipping " + f.getName() + " (cannot open)");
+                        continue;
+                    }
+                    if (imp.getNChannels() < requiredChannels) {
+                        IJ.log("SAIBR batch: skipping " + f.getName() + " (" + imp.getNChannels() + " channels)");
+                        continue;
+                    }
+                    imp.setTitle(f.getName());
+                    toCorrect.put(imp);
+                }
+                toCorrect.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "SAIBR batch reader");
+
+        reader.start();
+
+        // Correct and write images as they arrive
+        int nWritten = 0;
+        boolean finished = false;
+        try {
+            int i = 0;
+            while (true) {
+                ImagePlus imp = toCorrect.take();
+                if (imp == END)
+                    break;
+                IJ.showStatus("SAIBR batch: correcting " + imp.getTitle());
+                IJ.showProgress(i++, inputFiles.length);
+                File out = new File(outputDir, outputName(imp.getTitle()));
+                try {
+                    saibrEngine.correct(imp, p, out);
+                    nWritten += 1;
+                } catch (IOException e) {
+                    IJ.log("SAIBR batch: failed to write " + out.getName() + " (" + e.getMessage() + ")");
+                } catch (RuntimeException e) {
+                    IJ.log("SAIBR batch: failed to correct " + imp.getTitle() + " (" + e + ")");
+                } finally {
+                    imp.flush();
+                }
+            }
+            finished = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!finished)
+                reader.interrupt();
+        }
+        IJ.showProgress(1.0);
+        return nWritten;
+    }
+
+
+    // TIFF inputs keep their name, others keep their extension in the name, e.g. a.nd2 -> a.nd2.tif
+    private static String outputName(String inputName) {
+        String lower = inputName.toLowerCase(Locale.ROOT);
+        if (lower.endsWith(".tif") || lower.endsWith(".tiff"))
+            return inputName;
+        return inputName + ".tif";
+    }
+
+
+    private static boolean sameFile(File a, File b) {
+        try {
+            return a.getCanonicalFile().equals(b.getCanonicalFile());
+        } catch (IOException e) {
+            return a.getAbsoluteFile().equals(b.getAbsoluteFile());
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package uk.ac.crick.goehringlab;
+
+import java.awt.Rectangle;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+
+// Gaussian blur of only the part of a plane that calibration samples. The plane is cropped to the
+// ROI bounding box plus the kernel margin and blurred with the box as the filter ROI, which gives
+// the same values inside the box as "Gaussian Blur..." on the whole 32-bit plane.
+class saibrBlur {
+
+    // Accuracy used by ImageJ's Gaussian Blur for 16-bit and 32-bit images
+    static final double ACCURACY = 0.0002;
+
+    // Above this sigma ImageJ blurs a downscaled copy aligned to the filter ROI, so cropping
+    // would change the result
+    private static final double MAX_CROP_SIGMA = 8.5;
+
+    private saibrBlur() {
+    }
+
+
+    // Region of the plane needed to blur bounds exactly
+    static Rectangle cropBounds(Rectangle bounds, double sigma, int width, int height) {
+        Rectangle image = new Rectangle(0, 0, width, height);
+        if (sigma > MAX_CROP_SIGMA)
+            return image;
+        int margin = margin(sigma);
+        Rectangle crop = new Rectangle(bounds.x - margin, bounds.y - margin,
+                bounds.width + 2 * margin, bounds.height + 2 * margin);
+        return crop.intersection(image);
+    }
+
+
+    // Blurred 32-bit copy of the crop region; values are exact inside bounds
+    static float[] blur(ImageProcessor ip, Rectangle crop, Rectangle bounds, double sigma) {
+        FloatProcessor fp = copy(ip, crop);
+        if (sigma > 0) {
+            fp.setRoi(bounds.x - crop.x, bounds.y - crop.y, bounds.width, bounds.height);
+            new GaussianBlur().blurGaussian(fp, sigma, sigma, ACCURACY);
+        }
+        return (float[]) fp.getPixels();
+    }
+
+
+    // 32-bit copy of the crop region
+    static FloatProcessor copy(ImageProcessor ip, Rectangle crop) {
+        FloatProcessor fp = new FloatProcessor(crop.width, crop.height);
+        float[] pixels = (float[]) fp.getPixels();
+        for (int y = 0; y < crop.height; y++) {
+            int offset = y * crop.width;
+            for (int x = 0; x < crop.width; x++)
+                pixels[offset + x] = ip.getf(crop.x + x, crop.y + y);
+        }
+        return fp;
+    }
+
+
+    static int margin(double sigma) {
+        double kRadius = sigma * Math.sqrt(-2 * Math.log(ACCURACY)) + 1;
+        return (int) Math.ceil(Math.max(kRadius, 5 * sigma)) + 1;
+    }
+
+}
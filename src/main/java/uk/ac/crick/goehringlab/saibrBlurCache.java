@@ -0,0 +1,175 @@
+package uk.ac.crick.goehringlab;
+
+import java.awt.Rectangle;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+
+// Memory-bounded LRU cache of blurred calibration planes, shared by all calibration runs. Entries are
+// keyed by the identity of the source plane's pixel array and a checksum of the cropped source pixels,
+// so an edit to the crop is always seen, whether or not the image was updated or is even shown. Source
+// arrays are only held weakly, and entries are dropped once their plane has been garbage collected.
+class saibrBlurCache {
+
+    private static saibrBlurCache instance;
+
+    // Size limit
+    private final long maxBytes;
+    private long bytes;
+
+    // Cached planes, in access order
+    private final LinkedHashMap<Key, float[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Source arrays that have been collected
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+
+    private saibrBlurCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+
+    static synchronized saibrBlurCache getInstance() {
+        if (instance == null) {
+            long maxMemory = IJ.maxMemory() > 0 ? IJ.maxMemory() : Runtime.getRuntime().maxMemory();
+            instance = new saibrBlurCache(Math.min(maxMemory / 8, 1L << 30));
+        }
+        return instance;
+    }
+
+
+    ///////////////////// LOOKUP //////////////////////
+
+    // Blurred crop of a plane as returned by saibrBlur.blur, computed on a miss
+    float[] blur(ImagePlus imp, int channel, int z, int t, Rectangle crop, Rectangle bounds, double sigma) {
+        ImageProcessor ip = plane(imp, channel, z, t);
+        Key key = new Key(ip.getPixels(), checksum(ip, crop), sigma, crop, bounds, collected);
+        synchronized (this) {
+            purge();
+            float[] pixels = cache.get(key);
+            if (pixels != null)
+                return pixels;
+        }
+
+        // Blur outside the lock, and only store it if the source was not edited meanwhile
+        float[] pixels = saibrBlur.blur(ip, crop, bounds, sigma);
+        if (checksum(ip, crop) != key.checksum)
+            return pixels;
+        synchronized (this) {
+            long size = 4L * pixels.length;
+            if (size <= maxBytes && cache.put(key, pixels) == null) {
+                bytes += size;
+                trim();
+            }
+        }
+        return pixels;
+    }
+
+
+    // Drops every entry, e.g. between jobs of a long-running script
+    synchronized void clear() {
+        cache.clear();
+        bytes = 0;
+    }
+
+
+    private static ImageProcessor plane(ImagePlus imp, int channel, int z, int t) {
+        ImageStack stack = imp.getStack();
+        int index = imp.getStackIndex(channel, z, t);
+        if (stack.isVirtual()) {
+            synchronized (stack) {
+                return stack.getProcessor(index);
+            }
+        }
+        return stack.getProcessor(index);
+    }
+
+
+    // Hash of the source pixels in the crop, one read per pixel (the blur itself reads each one many times)
+    private static long checksum(ImageProcessor ip, Rectangle crop) {
+        int width = ip.getWidth();
+        long hash = 1125899906842597L;
+        for (int y = crop.y; y < crop.y + crop.height; y++) {
+            int offset = y * width;
+            for (int x = crop.x; x < crop.x + crop.width; x++)
+                hash = 31 * hash + Float.floatToIntBits(ip.getf(offset + x));
+        }
+        return hash;
+    }
+
+
+    private void trim() {
+        Iterator<Map.Entry<Key, float[]>> it = cache.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= 4L * it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+
+    // Removes entries whose source plane has been collected
+    private void purge() {
+        for (Object ref = collected.poll(); ref != null; ref = collected.poll()) {
+            float[] pixels = cache.remove(((PlaneRef) ref).key);
+            if (pixels != null)
+                bytes -= 4L * pixels.length;
+        }
+    }
+
+
+    private static final class PlaneRef extends WeakReference<Object> {
+        final Key key;
+
+        PlaneRef(Object pixels, Key key, ReferenceQueue<Object> queue) {
+            super(pixels, queue);
+            this.key = key;
+        }
+    }
+
+
+    private static final class Key {
+        final PlaneRef source;
+        final int identity;
+        final long checksum;
+        final double sigma;
+        final Rectangle crop;
+        final Rectangle bounds;
+
+        Key(Object pixels, long checksum, double sigma, Rectangle crop, Rectangle bounds,
+            ReferenceQueue<Object> queue) {
+            this.source = new PlaneRef(pixels, this, queue);
+            this.identity = System.identityHashCode(pixels);
+            this.checksum = checksum;
+            this.sigma = sigma;
+            this.crop = new Rectangle(crop);
+            this.bounds = new Rectangle(bounds);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            Object pixels = source.get();
+            return pixels != null && pixels == k.source.get() && checksum == k.checksum
+                    && Double.compare(sigma, k.sigma) == 0 && crop.equals(k.crop) && bounds.equals(k.bounds);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(identity, checksum, sigma, crop, bounds);
+        }
+    }
+
+}
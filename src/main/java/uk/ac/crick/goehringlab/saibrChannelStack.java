@@ -0,0 +1,90 @@
+package uk.ac.crick.goehringlab;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+
+// Read-only view of one channel of a hyperstack. Planes are taken from the source stack by index
+// (getStackIndex) when requested, so no channel is copied and the other channels are never touched.
+class saibrChannelStack extends VirtualStack {
+
+    // Source
+    private final ImagePlus imp;
+    private final ImageStack source;
+    private final int channel;
+    private final int nSlices;
+    private final int nFrames;
+
+
+    // Channel is 1-based
+    saibrChannelStack(ImagePlus imp, int channel) {
+        super(imp.getWidth(), imp.getHeight());
+        this.imp = imp;
+        this.source = imp.getStack();
+        this.channel = channel;
+        this.nSlices = imp.getNSlices();
+        this.nFrames = imp.getNFrames();
+        setBitDepth(imp.getBitDepth());
+    }
+
+
+    // Index of plane n (slices within frames) in the source stack
+    private int sourceIndex(int n) {
+        if (n < 1 || n > getSize())
+            throw new IllegalArgumentException("Argument out of range: " + n);
+        int z = (n - 1) % nSlices + 1;
+        int t = (n - 1) / nSlices + 1;
+        return imp.getStackIndex(channel, z, t);
+    }
+
+
+    // Wraps the source pixels without copying. Virtual sources are read one plane at a time
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        int index = sourceIndex(n);
+        if (source.isVirtual()) {
+            synchronized (source) {
+                return source.getProcessor(index);
+            }
+        }
+        return source.getProcessor(index);
+    }
+
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+
+    @Override
+    public void setPixels(Object pixels, int n) {
+    }
+
+
+    @Override
+    public int getSize() {
+        return nSlices * nFrames;
+    }
+
+
+    @Override
+    public String getSliceLabel(int n) {
+        return source.getSliceLabel(sourceIndex(n));
+    }
+
+
+    @Override
+    public void deleteSlice(int n) {
+        throw new UnsupportedOperationException("Channel views cannot be edited");
+    }
+
+
+    @Override
+    public void deleteLastSlice() {
+        throw new UnsupportedOperationException("Channel views cannot be edited");
+    }
+
+}
@@ -0,0 +1,376 @@
+package uk.ac.crick.goehringlab;
+
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+import ij.util.Tools;
+
+
+// Calibration and correction as plain ImageJ commands, so they are recorded by the macro recorder and
+// can be run from macros or headless, e.g.
+//     run("SAIBR Calibrate", "primary=1 predictor_1=2 predictor_2=0 gaussian=2 method=[Least squares] use_roi save_profile=/data/cal.saibr");
+//     run("SAIBR Correct", "primary=1 predictor_1=2 predictor_2=0 profile=/data/cal.saibr c=0 m1=1 m2=0 output=[32-bit float] threads=4 save_to=");
+// The work is done by saibrEngine. Calibration results are shown in the Results table. Without a display
+// (java.awt.headless) the options are read straight from the macro, as no dialog can be created.
+public class saibrCommand implements PlugIn {
+
+    public void run(String arg) {
+        if (arg.equals("calibrate"))
+            calibrate();
+        else if (arg.equals("correct"))
+            correct();
+        else
+            IJ.showMessage("ERROR: Unknown SAIBR command: " + arg);
+    }
+
+
+    ///////////////////// CALIBRATION //////////////////
+
+    private void calibrate() {
+        ImagePlus current = WindowManager.getCurrentImage();
+        if (current == null) {
+            IJ.noImage();
+            return;
+        }
+
+        // Get parameters
+        saibrEngine.Params params = new saibrEngine.Params();
+        Options gd = new Options("SAIBR Calibrate");
+        addChannelFields(gd, params);
+        gd.addNumericField("Gaussian blur (radius):", params.sigma, 1);
+        gd.addChoice("Method:", saibrRegression.METHOD_NAMES, saibrRegression.METHOD_NAMES[params.method]);
+        gd.addCheckbox("Use_ROI", true);
+        gd.addCheckbox("Per-frame calibration", false);
+        gd.addCheckbox("All_open_images", false);
+        gd.addStringField("Save_profile (optional):", "", 30);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return;
+        getChannelFields(gd, params);
+        params.sigma = gd.getNextNumber();
+        params.method = gd.getNextChoiceIndex();
+        boolean useRoi = gd.getNextBoolean();
+        params.perFrame = gd.getNextBoolean();
+        boolean allImages = gd.getNextBoolean();
+        String profilePath = gd.getNextString().trim();
+
+        // Get images and ROIs
+        ImagePlus[] imps;
+        if (allImages) {
+
+            // Skipping open images the calibration cannot use
+            int[] ids = WindowManager.getIDList();
+            int requiredChannels = Math.max(params.primary, Math.max(params.predictor1, params.predictor2));
+            List<ImagePlus> usable = new ArrayList<>();
+            for (int id : ids == null ? new int[0] : ids) {
+                ImagePlus imp = WindowManager.getImage(id);
+                if (imp == null)
+                    continue;
+                if (imp.getNChannels() < requiredChannels)
+                    IJ.log("SAIBR: skipping " + imp.getTitle() + " (" + imp.getNChannels() + " channels)");
+                else if (useRoi && imp.getRoi() == null)
+                    IJ.log("SAIBR: skipping " + imp.getTitle() + " (no ROI)");
+                else
+                    usable.add(imp);
+            }
+            if (usable.isEmpty()) {
+                IJ.showMessage("ERROR: No open image has the channels" + (useRoi ? " and ROI" : "") + " required");
+                return;
+            }
+            imps = usable.toArray(new ImagePlus[0]);
+        } else {
+            imps = new ImagePlus[]{current};
+        }
+        Roi[] rois = new Roi[imps.length];
+        for (int i = 0; i < imps.length; i++) {
+            if (useRoi && imps[i].getRoi() == null) {
+                IJ.showMessage("ERROR: No ROI selected for " + imps[i].getTitle());
+                return;
+            }
+            rois[i] = useRoi ? imps[i].getRoi() : null;
+        }
+
+        // Calibrate
+        saibrEngine.Result result;
+        try {
+            result = saibrEngine.calibrate(imps, rois, params);
+        } catch (RuntimeException e) {
+            IJ.showMessage("ERROR: " + e.getMessage());
+            return;
+        }
+
+        // Show coefficients, one row per frame for per-frame calibration
+        ResultsTable table = ResultsTable.getResultsTable();
+        table.reset();
+        if (result.frameCoefs == null) {
+            addRow(table, result.c, result.m1, result.m2, result.r2, result.nPixels);
+        } else {
+            for (int t = 0; t < result.frameCoefs.length; t++) {
+                saibrRegression regression = result.frameRegressions[t];
+                addRow(table, regression.getC(), regression.getM1(), regression.getM2(), regression.getR2(),
+                        regression.getN());
+                table.addValue("frame", t + 1);
+            }
+        }
+        table.show("Results");
+
+        // Save profile
+        if (!profilePath.isEmpty()) {
+            saibrProfile profile = new saibrProfile();
+            profile.flChannel = channelName(params.primary);
+            profile.afChannel = channelName(params.predictor1);
+            profile.redChannel = channelName(params.predictor2);
+            profile.sigma = params.sigma;
+            profile.method = params.method;
+            profile.c = result.c;
+            profile.m1 = result.m1;
+            profile.m2 = result.m2;
+            profile.r2 = result.r2;
+            profile.regression = result.regression;
+            profile.frameCoefs = result.frameCoefs;
+            profile.frameRegressions = result.frameRegressions;
+            try {
+                profile.save(new File(profilePath));
+            } catch (IOException e) {
+                IJ.showMessage("ERROR: Could not save profile: " + e.getMessage());
+            }
+        }
+    }
+
+
+    private static void addRow(ResultsTable table, double c, double m1, double m2, double r2, long nPixels) {
+        table.incrementCounter();
+        table.addValue("c", c);
+        table.addValue("m1", m1);
+        table.addValue("m2", m2);
+        table.addValue("R2", r2);
+        table.addValue("n_pixels", nPixels);
+    }
+
+
+    ///////////////////// CORRECTION ///////////////////
+
+    private void correct() {
+        ImagePlus imp = WindowManager.getCurrentImage();
+        if (imp == null) {
+            IJ.noImage();
+            return;
+        }
+
+        // Get parameters
+        saibrEngine.Params params = new saibrEngine.Params();
+        Options gd = new Options("SAIBR Correct");
+        addChannelFields(gd, params);
+        gd.addStringField("Profile (optional):", "", 30);
+        gd.addNumericField("c:", params.c, 4);
+        gd.addNumericField("m1:", params.m1, 4);
+        gd.addNumericField("m2:", params.m2, 4);
+        gd.addChoice("Output type:", saibrCorrection.OUTPUT_NAMES, saibrCorrection.OUTPUT_NAMES[params.outputType]);
+        gd.addNumericField("Threads:", params.threads, 0);
+        gd.addCheckbox("Virtual output", false);
+        gd.addStringField("Save_to (optional):", "", 30);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return;
+        getChannelFields(gd, params);
+        String profilePath = gd.getNextString().trim();
+        params.c = gd.getNextNumber();
+        params.m1 = gd.getNextNumber();
+        params.m2 = gd.getNextNumber();
+        params.outputType = gd.getNextChoiceIndex();
+        params.threads = (int) gd.getNextNumber();
+        boolean virtual = gd.getNextBoolean();
+        String outputPath = gd.getNextString().trim();
+
+        // Channels and coefficients from a profile
+        if (!profilePath.isEmpty()) {
+            try {
+                saibrProfile profile = saibrProfile.load(new File(profilePath));
+                params.primary = channelNumber(profile.flChannel);
+                params.predictor1 = channelNumber(profile.afChannel);
+                params.predictor2 = channelNumber(profile.redChannel);
+                params.c = profile.c;
+                params.m1 = profile.m1;
+                params.m2 = profile.m2;
+                params.frameCoefs = profile.frameCoefs;
+            } catch (IOException | NumberFormatException e) {
+                IJ.showMessage("ERROR: Could not load profile: " + e.getMessage());
+                return;
+            }
+        }
+
+        // Correct
+        try {
+            if (virtual && !outputPath.isEmpty()) {
+                IJ.showMessage("ERROR: Choose either virtual output or writing to file");
+            } else if (virtual) {
+                saibrEngine.correctVirtual(imp, params).show();
+            } else if (!outputPath.isEmpty()) {
+                saibrEngine.correct(imp, params, new File(outputPath));
+                IJ.showStatus("SAIBR: written " + outputPath);
+            } else {
+                saibrEngine.correct(imp, params).show();
+            }
+        } catch (IOException e) {
+            IJ.showMessage("ERROR: Could not write " + outputPath + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            IJ.showMessage("ERROR: " + e.getMessage());
+        }
+    }
+
+
+    ////////////////////// CHANNELS ////////////////////
+
+    private static void addChannelFields(Options gd, saibrEngine.Params params) {
+        gd.addNumericField("Primary channel:", params.primary, 0);
+        gd.addNumericField("Predictor_1 channel:", params.predictor1, 0);
+        gd.addNumericField("Predictor_2 channel (0 for none):", params.predictor2, 0);
+    }
+
+
+    private static void getChannelFields(Options gd, saibrEngine.Params params) {
+        params.primary = (int) gd.getNextNumber();
+        params.predictor1 = (int) gd.getNextNumber();
+        params.predictor2 = (int) gd.getNextNumber();
+    }
+
+
+    // Channel names as used in the channel lists and profiles
+    private static String channelName(int channel) {
+        return channel > 0 ? "Channel " + channel : "<None>";
+    }
+
+
+    private static int channelNumber(String name) {
+        if (name.equals("<None>"))
+            return 0;
+        return Integer.parseInt(name.substring(name.lastIndexOf(' ') + 1));
+    }
+
+
+
+    ////////////////////// OPTIONS /////////////////////
+
+    // A GenericDialog, or the macro options when headless, with fields read back in the order they were added
+    private static class Options {
+
+        private final GenericDialog gd;
+        private final String macroOptions;
+        private final List<String> keys = new ArrayList<>();
+        private final List<Object> defaults = new ArrayList<>();
+        private final List<String[]> choices = new ArrayList<>();
+        private int next;
+
+
+        Options(String title) {
+            boolean headless = GraphicsEnvironment.isHeadless();
+            gd = headless ? null : new GenericDialog(title);
+            String options = headless ? Macro.getOptions() : null;
+            macroOptions = options == null ? "" : options;
+        }
+
+
+        void addNumericField(String label, double value, int digits) {
+            if (gd != null)
+                gd.addNumericField(label, value, digits);
+            add(label, value, null);
+        }
+
+
+        void addChoice(String label, String[] items, String value) {
+            if (gd != null)
+                gd.addChoice(label, items, value);
+            add(label, value, items);
+        }
+
+
+        void addCheckbox(String label, boolean value) {
+            if (gd != null)
+                gd.addCheckbox(label, value);
+            add(label, value, null);
+        }
+
+
+        void addStringField(String label, String value, int columns) {
+            if (gd != null)
+                gd.addStringField(label, value, columns);
+            add(label, value, null);
+        }
+
+
+        private void add(String label, Object value, String[] items) {
+            keys.add(Macro.trimKey(label));
+            defaults.add(value);
+            choices.add(items);
+        }
+
+
+        void showDialog() {
+            if (gd != null)
+                gd.showDialog();
+        }
+
+
+        boolean wasCanceled() {
+            return gd != null && gd.wasCanceled();
+        }
+
+
+        double getNextNumber() {
+            if (gd != null)
+                return gd.getNextNumber();
+            return Tools.parseDouble(value(), Double.NaN);
+        }
+
+
+        // -1 if the option is not one of the choices
+        int getNextChoiceIndex() {
+            if (gd != null)
+                return gd.getNextChoiceIndex();
+            String[] items = choices.get(next);
+            return Arrays.asList(items).indexOf(value());
+        }
+
+
+        // Checkboxes are set by their key alone, and are off when absent from the options
+        boolean getNextBoolean() {
+            if (gd != null)
+                return gd.getNextBoolean();
+            String key = keys.get(next);
+            Object value = defaults.get(next++);
+            if (macroOptions.isEmpty())
+                return (Boolean) value;
+            return (" " + macroOptions + " ").contains(" " + key + " ");
+        }
+
+
+        String getNextString() {
+            if (gd != null)
+                return gd.getNextString();
+            return value();
+        }
+
+
+        private String value() {
+            String key = keys.get(next);
+            String value = String.valueOf(defaults.get(next++));
+            if (macroOptions.isEmpty())
+                return value;
+            return Macro.getValue(macroOptions, key, value);
+        }
+
+    }
+
+}
@@ -0,0 +1,357 @@
+package uk.ac.crick.goehringlab;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+
+// Fused correction kernel: fl - (c + m1 * af + m2 * red) in a single pass over the input planes.
+// Planes are independent, so each thread of a pool takes the next plane; each plane is computed
+// by the same serial loop, so the result does not depend on the number of threads.
+// Coefficients can vary from frame to frame when a per-frame calibration is applied.
+// Results can be stored as 32-bit floats, or converted within the same pass to 16-bit integers scaled
+// to a range bounded from the input ranges (so negative residuals survive) or to packed half floats.
+class saibrCorrection {
+
+    // Output types
+    static final int FLOAT = 0;
+    static final int SCALED_16 = 1;
+    static final int HALF_FLOAT = 2;
+    static final String[] OUTPUT_NAMES = {"32-bit float", "16-bit scaled", "16-bit half float"};
+
+    private saibrCorrection() {
+    }
+
+
+    // Channels are 1-based, redChannel <= 0 for two channel correction
+    static ImagePlus correctImage(ImagePlus imp, int flChannel, int afChannel, int redChannel,
+                                  double c, double m1, double m2, int nThreads, String title) {
+        return correctImage(imp, flChannel, afChannel, redChannel, new double[][]{{c, m1, m2}}, nThreads, title);
+    }
+
+
+    // Per-frame coefficients {c, m1, m2}, interpolated if the number of frames differs
+    static ImagePlus correctImage(ImagePlus imp, int flChannel, int afChannel, int redChannel,
+                                  double[][] frameCoefs, int nThreads, String title) {
+
+        // Get channels
+        ImageStack flStack = new saibrChannelStack(imp, flChannel);
+        ImageStack afStack = new saibrChannelStack(imp, afChannel);
+        ImageStack redStack = redChannel > 0 ? new saibrChannelStack(imp, redChannel) : null;
+
+        // Perform correction
+        double[][] planeCoefs = planeCoefficients(frameCoefs, imp.getNSlices(), imp.getNFrames());
+        ImageStack correctedStack = correctStack(flStack, afStack, redStack, planeCoefs, nThreads);
+
+        // Create image
+        ImagePlus correctedImp = new ImagePlus(title, correctedStack);
+        correctedImp.setDimensions(1, imp.getNSlices(), imp.getNFrames());
+        if (imp.getNSlices() > 1 && imp.getNFrames() > 1)
+            correctedImp.setOpenAsHyperStack(true);
+        correctedImp.setCalibration(imp.getCalibration());
+        return correctedImp;
+    }
+
+
+    static ImageStack correctStack(ImageStack flStack, ImageStack afStack, ImageStack redStack,
+                                   double c, double m1, double m2, int nThreads) {
+        double[][] planeCoefs = planeCoefficients(new double[][]{{c, m1, m2}}, flStack.getSize(), 1);
+        return correctStack(flStack, afStack, redStack, planeCoefs, nThreads);
+    }
+
+
+    static ImageStack correctStack(ImageStack flStack, ImageStack afStack, ImageStack redStack,
+                                   double[][] planeCoefs, int nThreads) {
+        return correctStack(flStack, afStack, redStack, planeCoefs, FLOAT, null, nThreads);
+    }
+
+
+    // Scaling {offset, scale} for 16-bit scaled output, null otherwise. Half floats cannot be held by an ImageStack
+    static ImageStack correctStack(ImageStack flStack, ImageStack afStack, ImageStack redStack,
+                                   double[][] planeCoefs, int type, double[] scaling, int nThreads) {
+        if (type == HALF_FLOAT)
+            throw new IllegalArgumentException("Half float output can only be written to file");
+
+        // Correct planes in parallel
+        int width = flStack.getWidth();
+        int height = flStack.getHeight();
+        Object[] planes = new Object[flStack.getSize()];
+        try {
+            forEachPlane(planes.length, nThreads, () -> i -> {
+                ImageProcessor redIp = redStack == null ? null : redStack.getProcessor(i + 1);
+                Object out = newPlane(type, width * height);
+                double[] coefs = planeCoefs[i];
+                correctPlane(flStack.getProcessor(i + 1), afStack.getProcessor(i + 1), redIp,
+                        coefs[0], coefs[1], coefs[2], type, scaling, out);
+                planes[i] = out;
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // Set up output stack
+        ImageStack correctedStack = new ImageStack(width, height);
+        for (int i = 0; i < planes.length; i++) {
+            ImageProcessor ip = type == FLOAT ? new FloatProcessor(width, height, (float[]) planes[i])
+                    : new ShortProcessor(width, height, (short[]) planes[i], null);
+            correctedStack.addSlice(flStack.getSliceLabel(i + 1), ip);
+        }
+        return correctedStack;
+    }
+
+
+    // Coefficients {c, m1, m2} for frame t (1-based) of nFrames, linearly interpolated between table rows
+    static double[] frameCoefficients(double[][] frameCoefs, int t, int nFrames) {
+        if (frameCoefs.length == 1)
+            return frameCoefs[0];
+        if (frameCoefs.length == nFrames)
+            return frameCoefs[t - 1];
+        double pos = nFrames > 1 ? (t - 1) * (frameCoefs.length - 1.) / (nFrames - 1) : 0;
+        int i = Math.min((int) pos, frameCoefs.length - 2);
+        double f = pos - i;
+        double[] coefs = new double[3];
+        for (int j = 0; j < 3; j++)
+            coefs[j] = (1 - f) * frameCoefs[i][j] + f * frameCoefs[i + 1][j];
+        return coefs;
+    }
+
+
+    // Coefficients for every plane of a single channel stack (slices within frames)
+    static double[][] planeCoefficients(double[][] frameCoefs, int nSlices, int nFrames) {
+        double[][] planeCoefs = new double[nSlices * nFrames][];
+        for (int t = 1; t <= nFrames; t++) {
+            double[] coefs = frameCoefficients(frameCoefs, t, nFrames);
+            for (int z = 0; z < nSlices; z++)
+                planeCoefs[(t - 1) * nSlices + z] = coefs;
+        }
+        return planeCoefs;
+    }
+
+
+    static void correctPlane(ImageProcessor flIp, ImageProcessor afIp, ImageProcessor redIp,
+                             double c, double m1, double m2, float[] out) {
+        int n = out.length;
+        if (redIp == null) {
+            for (int i = 0; i < n; i++)
+                out[i] = (float) (flIp.getf(i) - (c + m1 * afIp.getf(i)));
+        } else {
+            for (int i = 0; i < n; i++)
+                out[i] = (float) (flIp.getf(i) - (c + m1 * afIp.getf(i) + m2 * redIp.getf(i)));
+        }
+    }
+
+
+    // Corrected plane in the given output type, into a float[] (32-bit float) or short[] (16-bit types)
+    static void correctPlane(ImageProcessor flIp, ImageProcessor afIp, ImageProcessor redIp,
+                             double c, double m1, double m2, int type, double[] scaling, Object out) {
+        if (type == FLOAT) {
+            correctPlane(flIp, afIp, redIp, c, m1, m2, (float[]) out);
+            return;
+        }
+        short[] pixels = (short[]) out;
+        double offset = type == SCALED_16 ? scaling[0] : 0;
+        double invScale = type == SCALED_16 ? 1 / scaling[1] : 1;
+        int n = pixels.length;
+        if (redIp == null) {
+            for (int i = 0; i < n; i++)
+                pixels[i] = encode(flIp.getf(i) - (c + m1 * afIp.getf(i)), type, offset, invScale);
+        } else {
+            for (int i = 0; i < n; i++)
+                pixels[i] = encode(flIp.getf(i) - (c + m1 * afIp.getf(i) + m2 * redIp.getf(i)), type, offset,
+                        invScale);
+        }
+    }
+
+
+    // Empty plane of the given output type
+    static Object newPlane(int type, int pixelCount) {
+        return type == FLOAT ? new float[pixelCount] : new short[pixelCount];
+    }
+
+
+    ///////////////////// CONVERSION /////////////////////
+
+    // 16-bit scaled value or half float
+    static short encode(double value, int type, double offset, double invScale) {
+        if (type == HALF_FLOAT)
+            return toHalf((float) value);
+        long raw = Math.round((value - offset) * invScale);
+        return (short) (raw < 0 ? 0 : raw > 65535 ? 65535 : raw);
+    }
+
+
+    // Scaling {offset, scale} mapping [min, max] onto 0-65535, for value = offset + scale * raw
+    static double[] scaling(double min, double max) {
+        if (!(max > min))
+            return new double[]{min, 1};
+        return new double[]{min, (max - min) / 65535};
+    }
+
+
+    // IEEE 754 half precision bits, rounded to nearest
+    static short toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+
+        // NaN and infinity
+        if (abs >= 0x7f800000)
+            return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+
+        // Overflow to infinity
+        int rounded = abs + 0x1000;
+        if (rounded >= 0x47800000)
+            return (short) (sign | 0x7c00);
+
+        // Normal
+        if (rounded >= 0x38800000)
+            return (short) (sign | ((rounded - 0x38000000) >>> 13));
+
+        // Underflow to zero
+        if (abs < 0x33000000)
+            return (short) sign;
+
+        // Subnormal
+        int exponent = abs >>> 23;
+        int mantissa = (abs & 0x7fffff) | 0x800000;
+        return (short) (sign | ((mantissa + (0x800000 >>> (exponent - 102))) >>> (126 - exponent)));
+    }
+
+
+    // Scaling {offset, scale} for 16-bit scaled output that holds every corrected value, bounded from the
+    // range {min, max} of each input channel and the coefficients of each plane, so that the correction
+    // runs only once. redRange is null for two channel correction
+    static double[] boundedScaling(double[] flRange, double[] afRange, double[] redRange, double[][] planeCoefs) {
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = Double.NEGATIVE_INFINITY;
+        for (double[] coefs : planeCoefs) {
+            double min = flRange[0] - coefs[0] - Math.max(coefs[1] * afRange[0], coefs[1] * afRange[1]);
+            double max = flRange[1] - coefs[0] - Math.min(coefs[1] * afRange[0], coefs[1] * afRange[1]);
+            if (redRange != null) {
+                min -= Math.max(coefs[2] * redRange[0], coefs[2] * redRange[1]);
+                max -= Math.min(coefs[2] * redRange[0], coefs[2] * redRange[1]);
+            }
+            lo = Math.min(lo, min);
+            hi = Math.max(hi, max);
+        }
+        if (!(lo <= hi))
+            return scaling(0, 0);
+        return scaling(lo, hi);
+    }
+
+
+    // Range {min, max} of the values of a stack, ignoring NaN and infinities, {0, 0} if there are none
+    static double[] stackRange(ImageStack stack, int nThreads) {
+        int nPlanes = stack.getSize();
+        int pixelCount = stack.getWidth() * stack.getHeight();
+        double[] min = new double[nPlanes];
+        double[] max = new double[nPlanes];
+        try {
+            forEachPlane(nPlanes, nThreads, () -> i -> {
+                ImageProcessor ip = stack.getProcessor(i + 1);
+                float lo = Float.POSITIVE_INFINITY;
+                float hi = Float.NEGATIVE_INFINITY;
+                for (int k = 0; k < pixelCount; k++) {
+                    float v = ip.getf(k);
+                    if (v < lo && v != Float.NEGATIVE_INFINITY)
+                        lo = v;
+                    if (v > hi && v != Float.POSITIVE_INFINITY)
+                        hi = v;
+                }
+                min[i] = lo;
+                max[i] = hi;
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        double[] range = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        for (int i = 0; i < nPlanes; i++) {
+            range[0] = Math.min(range[0], min[i]);
+            range[1] = Math.max(range[1], max[i]);
+        }
+        return range[0] <= range[1] ? range : new double[]{0, 0};
+    }
+
+
+    ///////////////////// FILE OUTPUT /////////////////////
+
+    // Writes each corrected plane straight to the file, in the writer's output type, instead of building a
+    // stack. Each thread takes the next plane and corrects it into its own buffer, so memory use is one
+    // plane per thread
+    static void correctStack(ImageStack flStack, ImageStack afStack, ImageStack redStack,
+                             double[][] planeCoefs, saibrTiffWriter writer, int nThreads) throws IOException {
+        int pixelCount = flStack.getWidth() * flStack.getHeight();
+        int type = writer.getType();
+        double[] scaling = writer.getScaling();
+        forEachPlane(flStack.getSize(), nThreads, () -> {
+            Object out = newPlane(type, pixelCount);
+            return i -> {
+                ImageProcessor redIp = redStack == null ? null : redStack.getProcessor(i + 1);
+                double[] coefs = planeCoefs[i];
+                correctPlane(flStack.getProcessor(i + 1), afStack.getProcessor(i + 1), redIp,
+                        coefs[0], coefs[1], coefs[2], type, scaling, out);
+                writer.writePlane(i, out);
+            };
+        });
+    }
+
+
+    private interface PlaneWorker {
+        void process(int plane) throws IOException;
+    }
+
+
+    // Runs planes on a pool, each thread taking the next plane with a worker (and buffers) of its own.
+    // A single thread runs them in order on the calling thread
+    private static void forEachPlane(int nPlanes, int nThreads, Supplier<PlaneWorker> workers)
+            throws IOException {
+        int nWorkers = Math.max(1, Math.min(nThreads, nPlanes));
+        if (nWorkers == 1) {
+            PlaneWorker worker = workers.get();
+            for (int i = 0; i < nPlanes; i++)
+                worker.process(i);
+            return;
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        Callable<Void> task = () -> {
+            PlaneWorker worker = workers.get();
+            for (int i = next.getAndIncrement(); i < nPlanes; i = next.getAndIncrement())
+                worker.process(i);
+            return null;
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(nWorkers);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int k = 0; k < nWorkers; k++)
+                futures.add(pool.submit(saibrTimings.counted(task)));
+            for (Future<Void> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Correction interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package uk.ac.crick.goehringlab;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.gui.Plot;
+
+
+// Two-dimensional histogram of calibration pixels, drawn on a Plot as filled bins shaded by log count.
+// Pixels are binned rather than drawn, so drawing cost depends on the number of bins rather than the
+// number of pixels.
+class saibrDensityPlot {
+
+    // Number of colour levels
+    private static final int LEVELS = 32;
+
+    // Grid
+    private final int nBins;
+    private final double xMin;
+    private final double xMax;
+    private final double yMin;
+    private final double yMax;
+    private final double[] counts;
+
+
+    saibrDensityPlot(int nBins, double xMin, double xMax, double yMin, double yMax) {
+        this.nBins = nBins;
+        this.xMin = xMin;
+        this.xMax = xMax > xMin ? xMax : xMin + 1;
+        this.yMin = yMin;
+        this.yMax = yMax > yMin ? yMax : yMin + 1;
+        this.counts = new double[nBins * nBins];
+    }
+
+
+    // Adds count points spread evenly over the box [x0, x1] x [y0, y1], or at a point if the box is empty.
+    // Parts outside the grid are ignored
+    void add(double x0, double x1, double y0, double y1, double count) {
+        double xStep = (xMax - xMin) / nBins;
+        double yStep = (yMax - yMin) / nBins;
+        int bx0 = bin(Math.max(x0, xMin), xMin, xMax);
+        int bx1 = bin(Math.min(x1, xMax), xMin, xMax);
+        int by0 = bin(Math.max(y0, yMin), yMin, yMax);
+        int by1 = bin(Math.min(y1, yMax), yMin, yMax);
+        if (bx0 < 0 || bx1 < 0 || by0 < 0 || by1 < 0)
+            return;
+        for (int by = by0; by <= by1; by++) {
+            double fy = overlap(y0, y1, yMin + by * yStep, yStep);
+            for (int bx = bx0; bx <= bx1; bx++)
+                counts[by * nBins + bx] += count * fy * overlap(x0, x1, xMin + bx * xStep, xStep);
+        }
+    }
+
+
+    // Fraction of [v0, v1] within the bin starting at lo, 1 if the interval is empty
+    private static double overlap(double v0, double v1, double lo, double step) {
+        if (v1 <= v0)
+            return 1;
+        return Math.max(0, Math.min(v1, lo + step) - Math.max(v0, lo)) / (v1 - v0);
+    }
+
+
+    private int bin(double v, double min, double max) {
+        if (!(v >= min && v <= max))
+            return -1;
+        return Math.min((int) ((v - min) / (max - min) * nBins), nBins - 1);
+    }
+
+
+    // Sets the plot limits to the grid and draws the non-empty bins
+    void draw(Plot plot) {
+        plot.setLimits(xMin, xMax, yMin, yMax);
+
+        // Maximum count
+        double max = 0;
+        for (double count : counts)
+            max = Math.max(max, count);
+        if (max == 0)
+            return;
+
+        // Group bins by colour level
+        List<ArrayList<float[]>> shapes = new ArrayList<>(LEVELS);
+        for (int level = 0; level < LEVELS; level++)
+            shapes.add(null);
+        double xStep = (xMax - xMin) / nBins;
+        double yStep = (yMax - yMin) / nBins;
+        double logMax = Math.log(max + 1);
+        for (int by = 0; by < nBins; by++) {
+            for (int bx = 0; bx < nBins; bx++) {
+                double count = counts[by * nBins + bx];
+                if (count == 0)
+                    continue;
+                int level = Math.min((int) (LEVELS * Math.log(count + 1) / logMax), LEVELS - 1);
+                if (shapes.get(level) == null)
+                    shapes.set(level, new ArrayList<>());
+                shapes.get(level).add(new float[]{(float) (xMin + bx * xStep), (float) (yMin + by * yStep),
+                        (float) (xMin + (bx + 1) * xStep), (float) (yMin + (by + 1) * yStep)});
+            }
+        }
+
+        // Draw, blue for sparse bins to red for dense ones
+        for (int level = 0; level < LEVELS; level++) {
+            if (shapes.get(level) == null)
+                continue;
+            Color colour = Color.getHSBColor(0.67f * (1 - (float) level / (LEVELS - 1)), 0.9f, 0.9f);
+            plot.setColor(colour, colour);
+            plot.drawShapes("rectangles", shapes.get(level));
+        }
+    }
+
+
+    // {xMin, xMax, yMin, yMax}
+    double[] getLimits() {
+        return new double[]{xMin, xMax, yMin, yMax};
+    }
+
+}
@@ -0,0 +1,405 @@
+package uk.ac.crick.goehringlab;
+
+import java.io.File;
+import java.io.IOException;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+
+
+// Calibration and correction without the GUI, for macros, scripts and headless batch jobs. Settings are
+// passed in a Params object, which is copied and checked on entry, and every call works only on its
+// arguments, so calls from several threads can run at once. The only shared state is the cache of blurred
+// calibration planes, which checks the source pixels on every lookup (see clearCache). Images are read in
+// place and never modified.
+//
+// From a Jython script:
+//     params = saibrEngine.Params()
+//     params.primary, params.predictor1 = 1, 2
+//     params.setCalibration(saibrEngine.calibrate([imp], [imp.getRoi()], params))
+//     saibrEngine.correct(imp, params).show()
+public final class saibrEngine {
+
+    // Regression methods
+    public static final int LEAST_SQUARES = saibrRegression.LEAST_SQUARES;
+    public static final int ORTHOGONAL = saibrRegression.ORTHOGONAL;
+
+    // Output types
+    public static final int FLOAT = saibrCorrection.FLOAT;
+    public static final int SCALED_16 = saibrCorrection.SCALED_16;
+    public static final int HALF_FLOAT = saibrCorrection.HALF_FLOAT;
+
+    private saibrEngine() {
+    }
+
+
+    ////////////////////// PARAMETERS //////////////////////
+
+    public static class Params {
+
+        // Channels, 1-based, predictor2 <= 0 for the two channel method
+        public int primary = 1;
+        public int predictor1 = 2;
+        public int predictor2 = 0;
+
+        // Calibration
+        public double sigma = 2;
+        public int method = LEAST_SQUARES;
+        public boolean perFrame;
+
+        // Correction: c, m1 and m2, or per-frame coefficients {c, m1, m2} if not null
+        public double c = 0;
+        public double m1 = 1;
+        public double m2 = 0;
+        public double[][] frameCoefs;
+        public int outputType = FLOAT;
+
+        public int threads = Prefs.getThreads();
+
+
+        public Params copy() {
+            Params params = new Params();
+            params.primary = primary;
+            params.predictor1 = predictor1;
+            params.predictor2 = predictor2;
+            params.sigma = sigma;
+            params.method = method;
+            params.perFrame = perFrame;
+            params.c = c;
+            params.m1 = m1;
+            params.m2 = m2;
+            if (frameCoefs != null) {
+                params.frameCoefs = new double[frameCoefs.length][];
+                for (int t = 0; t < frameCoefs.length; t++)
+                    params.frameCoefs[t] = frameCoefs[t].clone();
+            }
+            params.outputType = outputType;
+            params.threads = threads;
+            return params;
+        }
+
+
+        // Uses the coefficients of a calibration for correction
+        public void setCalibration(Result result) {
+            c = result.c;
+            m1 = result.m1;
+            m2 = result.m2;
+            frameCoefs = result.frameCoefs;
+        }
+
+
+        boolean useRed() {
+            return predictor2 > 0;
+        }
+
+
+        double[][] coefficients() {
+            if (frameCoefs != null)
+                return frameCoefs;
+            return new double[][]{{c, m1, useRed() ? m2 : 0}};
+        }
+
+
+        private void checkChannels(ImagePlus imp) {
+            checkChannels();
+            int nChannels = imp.getNChannels();
+            if (primary > nChannels || predictor1 > nChannels || predictor2 > nChannels)
+                throw new IllegalArgumentException(imp.getTitle() + " has " + nChannels + " channel(s)");
+        }
+
+
+        void checkChannels() {
+            if (primary < 1 || predictor1 < 1)
+                throw new IllegalArgumentException("Channels must be positive integers");
+            if (primary == predictor1)
+                throw new IllegalArgumentException("Primary and Predictor 1 channels must be different");
+            if (useRed() && predictor1 == predictor2)
+                throw new IllegalArgumentException("Predictor 1 and Predictor 2 channels must be different");
+            if (useRed() && predictor2 == primary)
+                throw new IllegalArgumentException("Primary and Predictor 2 channels must be different");
+        }
+
+
+        private void checkCalibration() {
+            if (Double.isNaN(sigma) || sigma < 0)
+                throw new IllegalArgumentException("Gaussian blur radius must be a non-negative number");
+            if (method != LEAST_SQUARES && method != ORTHOGONAL)
+                throw new IllegalArgumentException("Unknown regression method: " + method);
+            checkThreads();
+        }
+
+
+        void checkCorrection() {
+            if (frameCoefs == null && (Double.isNaN(c) || Double.isNaN(m1) || Double.isNaN(m2)))
+                throw new IllegalArgumentException("c, m1 and m2 must be numbers");
+            if (frameCoefs != null) {
+                if (frameCoefs.length == 0)
+                    throw new IllegalArgumentException("No per-frame coefficients");
+                for (double[] coefs : frameCoefs) {
+                    if (coefs == null || coefs.length != 3)
+                        throw new IllegalArgumentException("Per-frame coefficients must be {c, m1, m2}");
+                }
+            }
+            if (outputType < FLOAT || outputType > HALF_FLOAT)
+                throw new IllegalArgumentException("Unknown output type: " + outputType);
+            checkThreads();
+        }
+
+
+        private void checkThreads() {
+            if (threads < 1)
+                throw new IllegalArgumentException("Threads must be a positive integer");
+        }
+
+    }
+
+
+    //////////////////////// RESULT ////////////////////////
+
+    public static class Result {
+
+        // Pooled fit
+        public final double c;
+        public final double m1;
+        public final double m2;
+        public final double r2;
+        public final long nPixels;
+
+        // Per-frame coefficients {c, m1, m2}, or null
+        public final double[][] frameCoefs;
+
+        // Fits, with one per image or one per frame (or null)
+        final saibrRegression regression;
+        final saibrRegression[] imageRegressions;
+        final saibrRegression[] frameRegressions;
+
+        // Histogram of the blurred pixel values, for the regression plot (or null)
+        final saibrPixelHistogram histogram;
+
+
+        private Result(saibrRegression regression, saibrRegression[] imageRegressions,
+                       saibrRegression[] frameRegressions, saibrPixelHistogram histogram) {
+            this.c = regression.getC();
+            this.m1 = regression.getM1();
+            this.m2 = regression.getM2();
+            this.r2 = regression.getR2();
+            this.nPixels = regression.getN();
+            this.regression = regression;
+            this.imageRegressions = imageRegressions;
+            this.frameRegressions = frameRegressions;
+            this.histogram = histogram;
+            if (frameRegressions == null) {
+                this.frameCoefs = null;
+            } else {
+                this.frameCoefs = new double[frameRegressions.length][];
+                for (int t = 0; t < frameRegressions.length; t++)
+                    this.frameCoefs[t] = new double[]{frameRegressions[t].getC(), frameRegressions[t].getM1(),
+                            frameRegressions[t].getM2()};
+            }
+        }
+
+
+        // R² of the pooled coefficients on image i
+        public double imageR2(int i) {
+            return imageRegressions[i].r2(c, m1, m2);
+        }
+
+
+        public long imagePixels(int i) {
+            return imageRegressions[i].getN();
+        }
+
+    }
+
+
+    ////////////////////// CALIBRATION //////////////////////
+
+    // Drops the blurred planes kept between calibrations. They are released anyway once their images are
+    // garbage collected, but long-running scripts can free the memory sooner
+    public static void clearCache() {
+        saibrBlurCache.getInstance().clear();
+    }
+
+
+    // Fits the model to the ROI pixels of each image (the whole image if its ROI is null), from the
+    // currently displayed slice and frame, or from every frame of matched movies if params.perFrame
+    public static Result calibrate(ImagePlus[] imps, Roi[] rois, Params params) {
+        saibrTimings timings = new saibrTimings("calibration");
+        Result result = calibrate(imps, rois, params, timings);
+        timings.finish();
+        return result;
+    }
+
+
+    static Result calibrate(ImagePlus[] imps, Roi[] rois, Params params, saibrTimings timings) {
+        Params p = params.copy();
+        p.checkCalibration();
+        if (imps.length == 0)
+            throw new IllegalArgumentException("No images selected");
+        if (rois != null && rois.length != imps.length)
+            throw new IllegalArgumentException("One ROI is needed per image");
+        Roi[] areas = new Roi[imps.length];
+        for (int i = 0; i < imps.length; i++) {
+            p.checkChannels(imps[i]);
+            areas[i] = rois == null || rois[i] == null ? new Roi(0, 0, imps[i].getWidth(), imps[i].getHeight())
+                    : rois[i];
+            if (!areas[i].isArea())
+                throw new IllegalArgumentException("No ROI selected for " + imps[i].getTitle());
+        }
+        int nPredictors = p.useRed() ? 2 : 1;
+
+        // Fit each frame, and pool the frames
+        if (p.perFrame) {
+            timings.start("frames");
+            saibrRegression[] regressions = saibrFrameCalibration.calibrate(imps, areas, p.primary, p.predictor1,
+                    p.predictor2, p.sigma, p.method, p.threads, timings);
+            saibrRegression pooled = new saibrRegression(nPredictors);
+            for (saibrRegression regression : regressions)
+                pooled.merge(regression);
+            pooled.fit(p.method);
+            timings.stop(pooled.getN());
+            return new Result(pooled, null, regressions, null);
+        }
+
+        // Stream images through the regression one at a time, keeping a summary of each
+        saibrRegression regression = new saibrRegression(nPredictors);
+        saibrRegression[] imageRegressions = new saibrRegression[imps.length];
+        saibrPixelHistogram histogram = new saibrPixelHistogram(p.useRed());
+        for (int i = 0; i < imps.length; i++) {
+            timings.start("accumulate");
+            imageRegressions[i] = new saibrRegression(nPredictors);
+            saibrFrameCalibration.accumulate(imps[i], areas[i], imps[i].getZ(), imps[i].getT(), p.primary,
+                    p.predictor1, p.predictor2, p.sigma, imageRegressions[i], histogram, timings);
+            regression.merge(imageRegressions[i]);
+            timings.stop(imageRegressions[i].getN());
+        }
+
+        // Run regression
+        timings.start("fit");
+        regression.fit(p.method);
+        timings.stop(regression.getN());
+        return new Result(regression, imageRegressions, null, histogram);
+    }
+
+
+    /////////////////////// CORRECTION ///////////////////////
+
+    // Corrected image, titled "Result of <title>", in params.outputType (16-bit scaled output records its
+    // scaling as a calibration function). Half floats can only be written to file
+    public static ImagePlus correct(ImagePlus imp, Params params) {
+        saibrTimings timings = new saibrTimings("correction");
+        ImagePlus correctedImp = correct(imp, params, timings);
+        timings.finish();
+        return correctedImp;
+    }
+
+
+    static ImagePlus correct(ImagePlus imp, Params params, saibrTimings timings) {
+        Params p = params.copy();
+        p.checkCorrection();
+        p.checkChannels(imp);
+        if (p.outputType == HALF_FLOAT)
+            throw new IllegalArgumentException("Half float output can only be written to file");
+        Channels channels = new Channels(imp, p);
+        long nPixels = (long) imp.getWidth() * imp.getHeight() * channels.fl.getSize();
+        double[] scaling = scaling(channels, p, nPixels, timings);
+
+        // Correct
+        timings.start("correct");
+        ImageStack correctedStack = saibrCorrection.correctStack(channels.fl, channels.af, channels.red,
+                channels.planeCoefs, p.outputType, scaling, p.threads);
+        ImagePlus correctedImp = new ImagePlus("Result of " + imp.getTitle(), correctedStack);
+        correctedImp.setDimensions(1, imp.getNSlices(), imp.getNFrames());
+        if (imp.getNSlices() > 1 && imp.getNFrames() > 1)
+            correctedImp.setOpenAsHyperStack(true);
+        Calibration cal = imp.getCalibration().copy();
+        if (scaling != null)
+            cal.setFunction(Calibration.STRAIGHT_LINE, scaling, "Gray Value");
+        correctedImp.setCalibration(cal);
+        timings.stop(nPixels);
+        return correctedImp;
+    }
+
+
+    // Writes the corrected image to a TIFF in params.outputType, without holding it in memory
+    public static void correct(ImagePlus imp, Params params, File output) throws IOException {
+        saibrTimings timings = new saibrTimings("correction");
+        correct(imp, params, output, timings);
+        timings.finish();
+    }
+
+
+    static void correct(ImagePlus imp, Params params, File output, saibrTimings timings) throws IOException {
+        Params p = params.copy();
+        p.checkCorrection();
+        p.checkChannels(imp);
+        Channels channels = new Channels(imp, p);
+        long nPixels = (long) imp.getWidth() * imp.getHeight() * channels.fl.getSize();
+        double[] scaling = scaling(channels, p, nPixels, timings);
+
+        // Write to file
+        timings.start("write");
+        try (saibrTiffWriter writer = new saibrTiffWriter(output, imp.getWidth(), imp.getHeight(),
+                imp.getNSlices(), imp.getNFrames(), imp.getCalibration(), p.outputType, scaling)) {
+            saibrCorrection.correctStack(channels.fl, channels.af, channels.red, channels.planeCoefs, writer,
+                    p.threads);
+        } finally {
+            timings.stop(nPixels);
+        }
+    }
+
+
+    // Virtual corrected image, computed from the source as planes are viewed. 32-bit float only
+    public static ImagePlus correctVirtual(ImagePlus imp, Params params) {
+        Params p = params.copy();
+        p.checkCorrection();
+        p.checkChannels(imp);
+        if (p.outputType != FLOAT)
+            throw new IllegalArgumentException("Virtual output is 32-bit float only");
+        return saibrVirtualStack.createImage(imp, p.primary, p.predictor1, p.predictor2, p.coefficients(),
+                "Result of " + imp.getTitle());
+    }
+
+
+    // Corrects an uncompressed TIFF on disk strip by strip, using at most memory bytes for buffers
+    public static void correctFile(File input, File output, Params params, long memory) throws IOException {
+        Params p = params.copy();
+        p.checkCorrection();
+        p.checkChannels();
+        saibrStripCorrection.run(input, output, p.primary, p.predictor1, p.predictor2, p.coefficients(),
+                p.outputType, memory);
+    }
+
+
+    // Scaling {offset, scale} for 16-bit scaled output, bounded from the range of each channel, or null
+    private static double[] scaling(Channels channels, Params p, long nPixels, saibrTimings timings) {
+        if (p.outputType != SCALED_16)
+            return null;
+        timings.start("range");
+        double[] flRange = saibrCorrection.stackRange(channels.fl, p.threads);
+        double[] afRange = saibrCorrection.stackRange(channels.af, p.threads);
+        double[] redRange = channels.red == null ? null : saibrCorrection.stackRange(channels.red, p.threads);
+        timings.stop(nPixels);
+        return saibrCorrection.boundedScaling(flRange, afRange, redRange, channels.planeCoefs);
+    }
+
+
+    // Channel views of the source and the coefficients of each of their planes
+    private static class Channels {
+        final ImageStack fl;
+        final ImageStack af;
+        final ImageStack red;
+        final double[][] planeCoefs;
+
+        Channels(ImagePlus imp, Params p) {
+            fl = new saibrChannelStack(imp, p.primary);
+            af = new saibrChannelStack(imp, p.predictor1);
+            red = p.useRed() ? new saibrChannelStack(imp, p.predictor2) : null;
+            planeCoefs = saibrCorrection.planeCoefficients(p.coefficients(), imp.getNSlices(), imp.getNFrames());
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package uk.ac.crick.goehringlab;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+
+// Calibration of every time point of matched calibration movies. Frames are fitted independently
+// and in parallel, each from the ROI pixels of the same frame in all calibration images.
+class saibrFrameCalibration {
+
+    private saibrFrameCalibration() {
+    }
+
+
+    // Channels are 1-based, redChannel <= 0 for two channel calibration. Returns one fit per frame. Timings
+    // may be null; frames fitted on worker threads only add their allocation to the open stage
+    static saibrRegression[] calibrate(ImagePlus[] imps, Roi[] rois, int flChannel, int afChannel, int redChannel,
+                                       double sigma, int method, int nThreads, saibrTimings timings) {
+
+        // Checking frame numbers
+        int nFrames = imps[0].getNFrames();
+        for (ImagePlus imp : imps) {
+            if (imp.getNFrames() != nFrames)
+                throw new IllegalArgumentException("All calibration images must have the same number of frames");
+        }
+
+        // Fit frames in parallel
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, nFrames)));
+        try {
+            List<Future<saibrRegression>> futures = new ArrayList<>();
+            for (int t = 1; t <= nFrames; t++) {
+                final int frame = t;
+                Callable<saibrRegression> task = () -> {
+                    saibrRegression regression = new saibrRegression(redChannel > 0 ? 2 : 1);
+                    for (int i = 0; i < imps.length; i++)
+                        accumulate(imps[i], rois[i], imps[i].getZ(), frame, flChannel, afChannel, redChannel, sigma,
+                                regression, null, timings);
+                    regression.fit(method);
+                    return regression;
+                };
+                futures.add(pool.submit(saibrTimings.counted(task)));
+            }
+            saibrRegression[] regressions = new saibrRegression[nFrames];
+            for (int t = 0; t < nFrames; t++)
+                regressions[t] = futures.get(t).get();
+            return regressions;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Calibration interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+
+    // Adds the blurred ROI pixels of plane (z, t) to the regression, and to the histogram for the
+    // regression plot, if not null. Timings, if not null, get the "blur" and "extract" stages of the extraction
+    static void accumulate(ImagePlus imp, Roi roi, int z, int t, int flChannel, int afChannel, int redChannel,
+                           double sigma, saibrRegression regression, saibrPixelHistogram histogram,
+                           saibrTimings timings) {
+        saibrRoiPixels data = saibrRoiPixels.extract(imp, roi, z, t, flChannel, afChannel, redChannel, sigma, false,
+                timings);
+        boolean useRed = redChannel > 0;
+        for (int i = 0; i < data.n; i++) {
+            if (useRed)
+                regression.add(data.flGausPixelVals[i], data.afGausPixelVals[i], data.redGausPixelVals[i]);
+            else
+                regression.add(data.flGausPixelVals[i], data.afGausPixelVals[i]);
+        }
+        if (histogram != null)
+            histogram.add(data);
+    }
+
+}
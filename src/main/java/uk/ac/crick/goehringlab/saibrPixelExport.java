@@ -0,0 +1,200 @@
+package uk.ac.crick.goehringlab;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+
+// Streaming export of calibration pixel data, one row per ROI pixel, written straight to disk through
+// buffered file channels. Rows are either appended to a CSV file or split into one NumPy .npy file per
+// column (int32 for integer columns, float32 otherwise), which numpy.load reads directly.
+abstract class saibrPixelExport implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    final String[] columns;
+    final boolean[] integer;
+
+
+    private saibrPixelExport(String[] columns, boolean[] integer) {
+        this.columns = columns;
+        this.integer = integer;
+    }
+
+
+    static saibrPixelExport openCsv(File file, String[] columns, boolean[] integer) throws IOException {
+        return new Csv(file, columns, integer);
+    }
+
+
+    // Writes <directory>/<column>.npy for each column
+    static saibrPixelExport openNpy(File directory, String[] columns, boolean[] integer) throws IOException {
+        return new Npy(directory, columns, integer);
+    }
+
+
+    // One value per column
+    abstract void addRow(double[] values) throws IOException;
+
+
+    private static FileChannel create(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+
+    ////////////////////// CSV ///////////////////////
+
+    private static final class Csv extends saibrPixelExport {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final StringBuilder line = new StringBuilder();
+
+        Csv(File file, String[] columns, boolean[] integer) throws IOException {
+            super(columns, integer);
+            channel = create(file);
+            for (int j = 0; j < columns.length; j++) {
+                if (j > 0)
+                    line.append(',');
+                line.append(columns[j]);
+            }
+            writeLine();
+        }
+
+        @Override
+        void addRow(double[] values) throws IOException {
+            for (int j = 0; j < columns.length; j++) {
+                if (j > 0)
+                    line.append(',');
+                if (integer[j])
+                    line.append((long) values[j]);
+                else
+                    line.append((float) values[j]);
+            }
+            writeLine();
+        }
+
+        private void writeLine() throws IOException {
+            line.append('\n');
+            byte[] bytes = line.toString().getBytes(StandardCharsets.US_ASCII);
+            line.setLength(0);
+            if (bytes.length > buffer.remaining())
+                write(channel, buffer);
+            buffer.put(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                write(channel, buffer);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+
+    ////////////////////// NPY ///////////////////////
+
+    private static final class Npy extends saibrPixelExport {
+
+        // Header length, a multiple of 64 with room for any row count
+        private static final int HEADER_SIZE = 128;
+
+        private final FileChannel[] channels;
+        private final ByteBuffer[] buffers;
+        private long rows;
+
+        Npy(File directory, String[] columns, boolean[] integer) throws IOException {
+            super(columns, integer);
+            channels = new FileChannel[columns.length];
+            buffers = new ByteBuffer[columns.length];
+            try {
+                for (int j = 0; j < columns.length; j++) {
+                    channels[j] = create(new File(directory, columns[j] + ".npy"));
+                    buffers[j] = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+                    // Placeholder header, rewritten with the row count on close
+                    buffers[j].put(header(integer[j], 0));
+                }
+            } catch (IOException e) {
+                closeChannels();
+                throw e;
+            }
+        }
+
+        @Override
+        void addRow(double[] values) throws IOException {
+            for (int j = 0; j < columns.length; j++) {
+                if (buffers[j].remaining() < 4)
+                    write(channels[j], buffers[j]);
+                if (integer[j])
+                    buffers[j].putInt((int) values[j]);
+                else
+                    buffers[j].putFloat((float) values[j]);
+            }
+            rows += 1;
+        }
+
+        // NPY format version 1.0 header for a one dimensional little endian array
+        private static byte[] header(boolean integer, long rows) {
+            StringBuilder dict = new StringBuilder();
+            dict.append("{'descr': '").append(integer ? "<i4" : "<f4")
+                    .append("', 'fortran_order': False, 'shape': (").append(rows).append(",), }");
+            while (dict.length() < HEADER_SIZE - 11)
+                dict.append(' ');
+            dict.append('\n');
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put((byte) 0x93).put("NUMPY".getBytes(StandardCharsets.US_ASCII));
+            header.put((byte) 1).put((byte) 0);
+            header.putShort((short) (HEADER_SIZE - 10));
+            header.put(dict.toString().getBytes(StandardCharsets.US_ASCII));
+            return header.array();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                for (int j = 0; j < columns.length; j++) {
+                    write(channels[j], buffers[j]);
+                    ByteBuffer header = ByteBuffer.wrap(header(integer[j], rows));
+                    channels[j].position(0);
+                    while (header.hasRemaining())
+                        channels[j].write(header);
+                }
+            } finally {
+                closeChannels();
+            }
+        }
+
+        private void closeChannels() throws IOException {
+            IOException error = null;
+            for (FileChannel channel : channels) {
+                try {
+                    if (channel != null)
+                        channel.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            if (error != null)
+                throw error;
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+package uk.ac.crick.goehringlab;
+
+
+// Joint histogram of the blurred primary and predictor values of calibration pixels, filled as they are
+// accumulated for the fit, so the regression plot never reads the images again. The model is only known
+// after the fit, so each channel is binned on its own axis, and every bin is placed at its predicted value
+// when the plot is drawn, spread over the plot bins it overlaps. The grid starts from the range of the
+// first image, with a margin, and doubles its bin width, merging pairs of bins, whenever a later image
+// falls outside it.
+class saibrPixelHistogram {
+
+    // Bins per axis (even, so the grid can grow about its centre)
+    private static final int PRIMARY_BINS = 200;
+    private static final int PREDICTOR_BINS_2 = 200;
+    private static final int PREDICTOR_BINS_3 = 64;
+
+    // Grid along {primary, predictor 1, predictor 2}: bin count, lower edge and bin width (0 until first use)
+    private final int[] bins;
+    private final int[] strides;
+    private final double[] mins;
+    private final double[] widths;
+    private long[] counts;
+
+    // Range {min, max} of the values seen on each axis
+    private final double[][] ranges;
+
+
+    // Three channel method if useRed, otherwise two channel method
+    saibrPixelHistogram(boolean useRed) {
+        int predictorBins = useRed ? PREDICTOR_BINS_3 : PREDICTOR_BINS_2;
+        this.bins = new int[]{PRIMARY_BINS, predictorBins, useRed ? predictorBins : 1};
+        this.strides = new int[]{1, bins[0], bins[0] * bins[1]};
+        this.mins = new double[3];
+        this.widths = new double[3];
+        this.counts = new long[bins[0] * bins[1] * bins[2]];
+        this.ranges = new double[][]{{Double.MAX_VALUE, -Double.MAX_VALUE}, {Double.MAX_VALUE, -Double.MAX_VALUE},
+                {0, 0}};
+    }
+
+
+    // Bins the blurred values of the pixels, skipping any that are not finite
+    void add(saibrRoiPixels data) {
+        boolean useRed = bins[2] > 1;
+
+        // Range of the image, and grid to cover it
+        double[][] imageRanges = {{Double.MAX_VALUE, -Double.MAX_VALUE}, {Double.MAX_VALUE, -Double.MAX_VALUE},
+                {Double.MAX_VALUE, -Double.MAX_VALUE}};
+        int n = 0;
+        for (int i = 0; i < data.n; i++) {
+            if (!finite(data, i, useRed))
+                continue;
+            updateRange(imageRanges[0], data.flGausPixelVals[i]);
+            updateRange(imageRanges[1], data.afGausPixelVals[i]);
+            if (useRed)
+                updateRange(imageRanges[2], data.redGausPixelVals[i]);
+            n += 1;
+        }
+        if (n == 0)
+            return;
+        for (int axis = 0; axis < (useRed ? 3 : 2); axis++) {
+            cover(axis, imageRanges[axis][0], imageRanges[axis][1]);
+            updateRange(ranges[axis], imageRanges[axis][0]);
+            updateRange(ranges[axis], imageRanges[axis][1]);
+        }
+
+        // Bin
+        for (int i = 0; i < data.n; i++) {
+            if (!finite(data, i, useRed))
+                continue;
+            int k = bin(0, data.flGausPixelVals[i]) + bin(1, data.afGausPixelVals[i]) * strides[1];
+            if (useRed)
+                k += bin(2, data.redGausPixelVals[i]) * strides[2];
+            counts[k] += 1;
+        }
+    }
+
+
+    // Density plot of the primary channel against c + m1 * (predictor 1) + m2 * (predictor 2), square and
+    // covering every pixel
+    saibrDensityPlot density(int nBins, double c, double m1, double m2) {
+        double xMin = c + Math.min(m1 * ranges[1][0], m1 * ranges[1][1]) + Math.min(m2 * ranges[2][0],
+                m2 * ranges[2][1]);
+        double xMax = c + Math.max(m1 * ranges[1][0], m1 * ranges[1][1]) + Math.max(m2 * ranges[2][0],
+                m2 * ranges[2][1]);
+        double min = Math.min(xMin, ranges[0][0]);
+        double max = Math.max(xMax, ranges[0][1]);
+        saibrDensityPlot density = new saibrDensityPlot(nBins, min, max, min, max);
+
+        // Each bin over the predictions of its extent
+        for (int k = 0; k < counts.length; k++) {
+            if (counts[k] == 0)
+                continue;
+            double[] fl = extent(0, k);
+            double[] af = extent(1, k);
+            double x0 = c + Math.min(m1 * af[0], m1 * af[1]);
+            double x1 = c + Math.max(m1 * af[0], m1 * af[1]);
+            if (bins[2] > 1) {
+                double[] red = extent(2, k);
+                x0 += Math.min(m2 * red[0], m2 * red[1]);
+                x1 += Math.max(m2 * red[0], m2 * red[1]);
+            }
+            density.add(x0, x1, fl[0], fl[1], counts[k]);
+        }
+        return density;
+    }
+
+
+    ////////////////////// GRID //////////////////////
+
+    private static boolean finite(saibrRoiPixels data, int i, boolean useRed) {
+        return !Float.isNaN(data.flGausPixelVals[i]) && !Float.isInfinite(data.flGausPixelVals[i])
+                && !Float.isNaN(data.afGausPixelVals[i]) && !Float.isInfinite(data.afGausPixelVals[i])
+                && (!useRed || !Float.isNaN(data.redGausPixelVals[i]) && !Float.isInfinite(data.redGausPixelVals[i]));
+    }
+
+
+    private static void updateRange(double[] range, double value) {
+        range[0] = Math.min(range[0], value);
+        range[1] = Math.max(range[1], value);
+    }
+
+
+    // Widens an axis until it covers [lo, hi], towards whichever ends it does not cover
+    private void cover(int axis, double lo, double hi) {
+        int n = bins[axis];
+        if (widths[axis] == 0) {
+            double span = hi > lo ? hi - lo : 1;
+            mins[axis] = lo - span / 4;
+            widths[axis] = 1.5 * span / n;
+            return;
+        }
+        while (lo < mins[axis] || hi > mins[axis] + n * widths[axis]) {
+            int shift = lo >= mins[axis] ? 0 : hi <= mins[axis] + n * widths[axis] ? n : n / 2;
+            mins[axis] -= shift * widths[axis];
+            widths[axis] *= 2;
+            merge(axis, shift);
+        }
+    }
+
+
+    // Merges pairs of bins along an axis after its width has doubled. Old bin i becomes new bin
+    // (i + shift) / 2, with shift 0, n / 2 or n if the grid grew upwards, both ways or downwards
+    private void merge(int axis, int shift) {
+        int n = bins[axis];
+        int stride = strides[axis];
+        long[] merged = new long[counts.length];
+        for (int k = 0; k < counts.length; k++) {
+            if (counts[k] == 0)
+                continue;
+            int i = (k / stride) % n;
+            merged[k + ((i + shift) / 2 - i) * stride] += counts[k];
+        }
+        counts = merged;
+    }
+
+
+    // Bin of a value along an axis that covers it
+    private int bin(int axis, double v) {
+        return Math.max(0, Math.min((int) ((v - mins[axis]) / widths[axis]), bins[axis] - 1));
+    }
+
+
+    // Edges {lo, hi} of the bin of cell k along an axis, kept within the values seen
+    private double[] extent(int axis, int k) {
+        int i = (k / strides[axis]) % bins[axis];
+        double lo = mins[axis] + i * widths[axis];
+        return new double[]{Math.max(ranges[axis][0], lo), Math.min(lo + widths[axis], ranges[axis][1])};
+    }
+
+}
@@ -0,0 +1,185 @@
+package uk.ac.crick.goehringlab;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+
+// Live preview of the correction of the plane currently shown in the source image. Requests are
+// handled by a background thread that only ever computes the latest one, so a burst of edits or slice
+// changes is coalesced into a single refresh. The output plane and the processors wrapping the source
+// planes are reused, so refreshing an in-memory image allocates nothing.
+class saibrPreview implements ImageListener {
+
+    // Source and preview
+    private final ImagePlus imp;
+    private final ImagePlus previewImp;
+    private final FloatProcessor previewIp;
+
+    // Reused wrappers of the source planes {fl, af, red}
+    private final ImageProcessor[] planes = new ImageProcessor[3];
+
+    // Latest request, guarded by this
+    private int flChannel;
+    private int afChannel;
+    private int redChannel;
+    private double[][] frameCoefs;
+    private boolean pending;
+    private boolean stopped;
+
+
+    // Shows an empty preview window; nothing is computed until the first update
+    saibrPreview(ImagePlus imp) {
+        this.imp = imp;
+        previewIp = new FloatProcessor(imp.getWidth(), imp.getHeight());
+        previewImp = new ImagePlus("Preview of " + imp.getTitle(), previewIp);
+        previewImp.setCalibration(imp.getCalibration());
+        previewImp.show();
+        ImagePlus.addImageListener(this);
+        Thread worker = new Thread(this::run, "SAIBR preview");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+
+    ImagePlus getSource() {
+        return imp;
+    }
+
+
+    synchronized boolean isStopped() {
+        return stopped;
+    }
+
+
+    // Channels are 1-based, redChannel <= 0 for two channel correction. Per-frame coefficients {c, m1, m2}
+    // are interpolated if the number of frames differs
+    void update(int flChannel, int afChannel, int redChannel, double[][] frameCoefs) {
+        int nFrames = imp.getNFrames();
+        double[][] coefs = new double[nFrames][];
+        for (int t = 1; t <= nFrames; t++)
+            coefs[t - 1] = saibrCorrection.frameCoefficients(frameCoefs, t, nFrames);
+        synchronized (this) {
+            this.flChannel = flChannel;
+            this.afChannel = afChannel;
+            this.redChannel = redChannel;
+            this.frameCoefs = coefs;
+            pending = true;
+            notifyAll();
+        }
+    }
+
+
+    // Stops the worker and closes the preview window
+    void stop() {
+        stopWorker();
+        if (previewImp.getWindow() != null)
+            previewImp.close();
+    }
+
+
+    private void stopWorker() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        ImagePlus.removeImageListener(this);
+    }
+
+
+    ///////////////////// RENDERING //////////////////////
+
+    private void run() {
+        while (true) {
+            int fl;
+            int af;
+            int red;
+            double[][] coefs;
+            synchronized (this) {
+                while (!pending && !stopped) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped)
+                    return;
+                pending = false;
+                fl = flChannel;
+                af = afChannel;
+                red = redChannel;
+                coefs = frameCoefs;
+            }
+            render(fl, af, red, coefs);
+        }
+    }
+
+
+    private void render(int fl, int af, int red, double[][] frameCoefs) {
+        if (imp.getWidth() != previewIp.getWidth() || imp.getHeight() != previewIp.getHeight())
+            return;
+
+        // Displayed plane
+        int z = imp.getZ();
+        int t = imp.getT();
+        ImageStack stack = imp.getStack();
+        if (stack == null || frameCoefs.length < t)
+            return;
+        ImageProcessor flIp = plane(stack, imp.getStackIndex(fl, z, t), 0);
+        ImageProcessor afIp = plane(stack, imp.getStackIndex(af, z, t), 1);
+        ImageProcessor redIp = red > 0 ? plane(stack, imp.getStackIndex(red, z, t), 2) : null;
+
+        // Correct into the preview
+        double[] coefs = frameCoefs[t - 1];
+        saibrCorrection.correctPlane(flIp, afIp, redIp, coefs[0], coefs[1], coefs[2],
+                (float[]) previewIp.getPixels());
+        previewIp.resetMinAndMax();
+        previewImp.updateAndDraw();
+    }
+
+
+    // Source plane, rewrapping the processor for in-memory stacks instead of creating a new one
+    private ImageProcessor plane(ImageStack stack, int index, int slot) {
+        if (stack.isVirtual() || planes[slot] == null || planes[slot].getBitDepth() != stack.getBitDepth()) {
+            planes[slot] = stack.getProcessor(index);
+            return planes[slot];
+        }
+        planes[slot].setPixels(stack.getPixels(index));
+        return planes[slot];
+    }
+
+
+    ///////////////////// LISTENERS //////////////////////
+
+    @Override
+    public void imageOpened(ImagePlus imp) {
+    }
+
+
+    // Closing either image ends the preview
+    @Override
+    public void imageClosed(ImagePlus imp) {
+        if (imp == this.imp)
+            stop();
+        else if (imp == previewImp)
+            stopWorker();
+    }
+
+
+    // Slice, frame and pixel changes in the source refresh the preview
+    @Override
+    public void imageUpdated(ImagePlus imp) {
+        if (imp != this.imp)
+            return;
+        synchronized (this) {
+            if (frameCoefs == null)
+                return;
+            pending = true;
+            notifyAll();
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+package uk.ac.crick.goehringlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+
+
+// Calibration profile saved as a small versioned properties file, so a calibration can be reused for
+// correction without opening the calibration images again. Holds the coefficients, channel mapping,
+// blur radius, regression method and the sufficient statistics of the pooled and per-frame fits.
+class saibrProfile {
+
+    static final String EXTENSION = ".saibr";
+    private static final int VERSION = 1;
+
+    // Channels, as shown in the channel lists ("<None>" for no second predictor)
+    String flChannel;
+    String afChannel;
+    String redChannel;
+
+    // Settings
+    double sigma;
+    int method;
+
+    // Pooled fit
+    double c;
+    double m1;
+    double m2;
+    double r2;
+    saibrRegression regression;
+
+    // Per-frame fits, or null
+    double[][] frameCoefs;
+    saibrRegression[] frameRegressions;
+
+
+    /////////////////////// SAVE ///////////////////////
+
+    void save(File file) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("version", String.valueOf(VERSION));
+        props.setProperty("primary", flChannel);
+        props.setProperty("predictor1", afChannel);
+        props.setProperty("predictor2", redChannel);
+        props.setProperty("sigma", String.valueOf(sigma));
+        props.setProperty("method", saibrRegression.METHOD_NAMES[method]);
+        props.setProperty("c", String.valueOf(c));
+        props.setProperty("m1", String.valueOf(m1));
+        props.setProperty("m2", String.valueOf(m2));
+        props.setProperty("r2", String.valueOf(r2));
+        if (regression != null) {
+            props.setProperty("n_pixels", String.valueOf(regression.getN()));
+            props.setProperty("statistics", join(regression.getState()));
+        }
+        if (frameCoefs != null) {
+            props.setProperty("frames", String.valueOf(frameCoefs.length));
+            for (int t = 0; t < frameCoefs.length; t++) {
+                String key = "frame." + (t + 1);
+                props.setProperty(key, join(frameCoefs[t]));
+                if (frameRegressions != null) {
+                    props.setProperty(key + ".n_pixels", String.valueOf(frameRegressions[t].getN()));
+                    props.setProperty(key + ".statistics", join(frameRegressions[t].getState()));
+                }
+            }
+        }
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            props.store(out, "SAIBR calibration profile");
+        }
+    }
+
+
+    /////////////////////// LOAD ///////////////////////
+
+    static saibrProfile load(File file) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            props.load(in);
+        }
+
+        // Checking version
+        int version = (int) number(props, "version");
+        if (version > VERSION)
+            throw new IOException("Profile version " + version + " is newer than this plugin supports");
+
+        saibrProfile profile = new saibrProfile();
+        profile.flChannel = string(props, "primary");
+        profile.afChannel = string(props, "predictor1");
+        profile.redChannel = string(props, "predictor2");
+        profile.sigma = number(props, "sigma");
+        profile.method = method(string(props, "method"));
+        profile.c = number(props, "c");
+        profile.m1 = number(props, "m1");
+        profile.m2 = number(props, "m2");
+        profile.r2 = number(props, "r2");
+        if (props.getProperty("statistics") != null)
+            profile.regression = regression(props, "statistics");
+
+        // Per-frame fits
+        if (props.getProperty("frames") != null) {
+            int nFrames = (int) number(props, "frames");
+            profile.frameCoefs = new double[nFrames][];
+            boolean hasStatistics = props.getProperty("frame.1.statistics") != null;
+            profile.frameRegressions = hasStatistics ? new saibrRegression[nFrames] : null;
+            for (int t = 0; t < nFrames; t++) {
+                String key = "frame." + (t + 1);
+                profile.frameCoefs[t] = split(props, key);
+                if (profile.frameCoefs[t].length != 3)
+                    throw new IOException("Invalid profile entry: " + key);
+                if (hasStatistics)
+                    profile.frameRegressions[t] = regression(props, key + ".statistics");
+            }
+        }
+        return profile;
+    }
+
+
+    private static String string(Properties props, String key) throws IOException {
+        String value = props.getProperty(key);
+        if (value == null)
+            throw new IOException("Missing profile entry: " + key);
+        return value.trim();
+    }
+
+
+    private static double number(Properties props, String key) throws IOException {
+        try {
+            return Double.parseDouble(string(props, key));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid profile entry: " + key);
+        }
+    }
+
+
+    private static int method(String name) throws IOException {
+        for (int i = 0; i < saibrRegression.METHOD_NAMES.length; i++) {
+            if (saibrRegression.METHOD_NAMES[i].equals(name))
+                return i;
+        }
+        throw new IOException("Unknown regression method: " + name);
+    }
+
+
+    private static saibrRegression regression(Properties props, String key) throws IOException {
+        try {
+            return saibrRegression.fromState(split(props, key));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid profile entry: " + key);
+        }
+    }
+
+
+    private static String join(double[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(values[i]);
+        }
+        return sb.toString();
+    }
+
+
+    private static double[] split(Properties props, String key) throws IOException {
+        String[] parts = string(props, key).split(",");
+        double[] values = new double[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++)
+                values[i] = Double.parseDouble(parts[i].trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid profile entry: " + key);
+        }
+        return values;
+    }
+
+}
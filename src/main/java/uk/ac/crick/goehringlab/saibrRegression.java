@@ -0,0 +1,234 @@
+package uk.ac.crick.goehringlab;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+
+
+// Streaming least squares regression of the primary channel on one or two predictor channels.
+// Keeps only the means and centred co-moment matrix of (y, x1[, x2]), updated one pixel at a time
+// (Welford) and combined across partial accumulators with the pairwise formula of Chan et al.
+// Fits are either ordinary least squares or orthogonal distance (total least squares), both solved
+// from the small co-moment matrix.
+class saibrRegression {
+
+    // Fitting methods
+    static final int LEAST_SQUARES = 0;
+    static final int ORTHOGONAL = 1;
+    static final String[] METHOD_NAMES = {"Least squares", "Orthogonal (PCA)"};
+
+    // Number of variables (primary + predictors)
+    private final int d;
+
+    // Sufficient statistics
+    private long n;
+    private final double[] mean;
+    private final double[][] comoment;
+
+    // Scratch
+    private final double[] delta;
+
+    // Fit results
+    private double c;
+    private double m1;
+    private double m2;
+    private double r2 = Double.NaN;
+
+
+    saibrRegression(int nPredictors) {
+        if (nPredictors != 1 && nPredictors != 2)
+            throw new IllegalArgumentException("One or two predictors required");
+        d = nPredictors + 1;
+        mean = new double[d];
+        comoment = new double[d][d];
+        delta = new double[d];
+    }
+
+
+    /////////////////// ACCUMULATION //////////////////
+
+    void add(double y, double x1) {
+        delta[0] = y - mean[0];
+        delta[1] = x1 - mean[1];
+        update();
+    }
+
+
+    void add(double y, double x1, double x2) {
+        delta[0] = y - mean[0];
+        delta[1] = x1 - mean[1];
+        delta[2] = x2 - mean[2];
+        update();
+    }
+
+
+    private void update() {
+        n += 1;
+        double f = (n - 1.) / n;
+        for (int i = 0; i < d; i++) {
+            mean[i] += delta[i] / n;
+            for (int j = i; j < d; j++)
+                comoment[i][j] += delta[i] * delta[j] * f;
+        }
+    }
+
+
+    void merge(saibrRegression other) {
+        if (other.d != d)
+            throw new IllegalArgumentException("Cannot merge regressions with different numbers of predictors");
+        if (other.n == 0)
+            return;
+        long nTotal = n + other.n;
+        double f = (double) n * other.n / nTotal;
+        for (int i = 0; i < d; i++)
+            delta[i] = other.mean[i] - mean[i];
+        for (int i = 0; i < d; i++) {
+            for (int j = i; j < d; j++)
+                comoment[i][j] += other.comoment[i][j] + delta[i] * delta[j] * f;
+            mean[i] += delta[i] * other.n / nTotal;
+        }
+        n = nTotal;
+    }
+
+
+    ///////////////////// FITTING //////////////////////
+
+    void fit() {
+        fit(LEAST_SQUARES);
+    }
+
+
+    void fit(int method) {
+        if (method == ORTHOGONAL)
+            fitOrthogonal();
+        else
+            fitLeastSquares();
+    }
+
+
+    private void fitLeastSquares() {
+        int p = d - 1;
+
+        // Normal equations on centred data: Sxx * beta = Sxy
+        double[][] sxx = new double[p][p];
+        double[][] sxy = new double[p][1];
+        for (int i = 0; i < p; i++) {
+            for (int j = 0; j < p; j++)
+                sxx[i][j] = getComoment(i + 1, j + 1);
+            sxy[i][0] = getComoment(i + 1, 0);
+        }
+        Matrix beta = new Matrix(sxx).solve(new Matrix(sxy));
+
+        // Get parameters
+        m1 = beta.get(0, 0);
+        m2 = p > 1 ? beta.get(1, 0) : 0;
+        c = mean[0] - m1 * mean[1] - (p > 1 ? m2 * mean[2] : 0);
+
+        // R squared
+        double sst = comoment[0][0];
+        double ssr = 0;
+        for (int i = 0; i < p; i++)
+            ssr += beta.get(i, 0) * sxy[i][0];
+        r2 = 1.0 - (sst - ssr) / sst;
+    }
+
+
+    // Plane through the means normal to the direction of least variance, i.e. the eigenvector of the
+    // smallest eigenvalue of the co-moment matrix. R squared is of the vertical residuals, as for
+    // least squares, so the two methods can be compared
+    private void fitOrthogonal() {
+        double[][] s = new double[d][d];
+        for (int i = 0; i < d; i++) {
+            for (int j = 0; j < d; j++)
+                s[i][j] = getComoment(i, j);
+        }
+        EigenvalueDecomposition eig = new Matrix(s).eig();
+
+        // Eigenvalues of a symmetric matrix are returned in ascending order
+        Matrix v = eig.getV();
+        double v0 = v.get(0, 0);
+        m1 = -v.get(1, 0) / v0;
+        m2 = d > 2 ? -v.get(2, 0) / v0 : 0;
+        c = mean[0] - m1 * mean[1] - (d > 2 ? m2 * mean[2] : 0);
+        r2 = r2(c, m1, m2);
+    }
+
+
+    // R squared of the given coefficients on the accumulated data, e.g. held-out pixels
+    double r2(double c, double m1, double m2) {
+        double[] b = {1, -m1, -m2};
+        double meanResid = -c;
+        double ssResid = 0;
+        for (int i = 0; i < d; i++) {
+            meanResid += b[i] * mean[i];
+            for (int j = 0; j < d; j++)
+                ssResid += b[i] * b[j] * getComoment(i, j);
+        }
+        ssResid += n * meanResid * meanResid;
+        return 1.0 - ssResid / comoment[0][0];
+    }
+
+
+    ////////////////// SERIALISATION ///////////////////
+
+    // Sufficient statistics as {predictors, n, means, upper triangle of co-moments}
+    double[] getState() {
+        double[] state = new double[2 + d + d * (d + 1) / 2];
+        int k = 0;
+        state[k++] = d - 1;
+        state[k++] = n;
+        for (int i = 0; i < d; i++)
+            state[k++] = mean[i];
+        for (int i = 0; i < d; i++) {
+            for (int j = i; j < d; j++)
+                state[k++] = comoment[i][j];
+        }
+        return state;
+    }
+
+
+    static saibrRegression fromState(double[] state) {
+        if (state.length < 1 || (state[0] != 1 && state[0] != 2))
+            throw new IllegalArgumentException("Invalid regression state");
+        saibrRegression regression = new saibrRegression((int) state[0]);
+        int d = regression.d;
+        if (state.length != 2 + d + d * (d + 1) / 2)
+            throw new IllegalArgumentException("Invalid regression state");
+        int k = 1;
+        regression.n = (long) state[k++];
+        for (int i = 0; i < d; i++)
+            regression.mean[i] = state[k++];
+        for (int i = 0; i < d; i++) {
+            for (int j = i; j < d; j++)
+                regression.comoment[i][j] = state[k++];
+        }
+        return regression;
+    }
+
+
+    //////////////////// ACCESSORS /////////////////////
+
+    private double getComoment(int i, int j) {
+        return i <= j ? comoment[i][j] : comoment[j][i];
+    }
+
+    long getN() {
+        return n;
+    }
+
+    double getC() {
+        return c;
+    }
+
+    double getM1() {
+        return m1;
+    }
+
+    double getM2() {
+        return m2;
+    }
+
+    double getR2() {
+        return r2;
+    }
+
+}
@@ -0,0 +1,134 @@
+package uk.ac.crick.goehringlab;
+
+import java.awt.Rectangle;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+
+// Pixels of one plane inside a calibration ROI, in row order: position, and blurred (and optionally raw)
+// value of each channel. The one extraction routine behind the fit (which also bins the pixels for the
+// regression plot) and the pixel export. Planes are blurred over the ROI bounding box and its margin only,
+// through the blur cache.
+class saibrRoiPixels {
+
+    int n;
+
+    int[] xc;
+    int[] yc;
+
+    float[] flGausPixelVals;
+    float[] flPixelVals;
+    float[] afGausPixelVals;
+    float[] afPixelVals;
+    float[] redGausPixelVals;
+    float[] redPixelVals;
+
+
+    // Three channel method if useRed, otherwise two channel method. Raw values only if raw
+    private saibrRoiPixels(int n, boolean useRed, boolean raw) {
+        this.n = n;
+        this.xc = new int[n];
+        this.yc = new int[n];
+        this.flGausPixelVals = new float[n];
+        this.afGausPixelVals = new float[n];
+        if (useRed)
+            this.redGausPixelVals = new float[n];
+        if (raw) {
+            this.flPixelVals = new float[n];
+            this.afPixelVals = new float[n];
+            if (useRed)
+                this.redPixelVals = new float[n];
+        }
+    }
+
+
+    // Channels are 1-based, redChannel <= 0 for the two channel method. Timings, if not null, get a "blur"
+    // and an "extract" stage
+    static saibrRoiPixels extract(ImagePlus imp, Roi roi, int z, int t, int flChannel, int afChannel, int redChannel,
+                                  double sigma, boolean raw, saibrTimings timings) {
+        boolean useRed = redChannel > 0;
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+
+        // ROI mask and bounds
+        ImageProcessor mask = roi.getMask();
+        byte[] maskPixels = mask == null ? null : (byte[]) mask.getPixels();
+        Rectangle roiBounds = roi.getBounds();
+        Rectangle bounds = roiBounds.intersection(new Rectangle(0, 0, width, height));
+        saibrRoiPixels data = new saibrRoiPixels(pixelCount(maskPixels, bounds, roiBounds), useRed, raw);
+        if (data.n == 0)
+            return data;
+
+        // Blur
+        if (timings != null)
+            timings.start("blur");
+        Rectangle crop = saibrBlur.cropBounds(bounds, sigma, width, height);
+        saibrBlurCache blurCache = saibrBlurCache.getInstance();
+        float[] flPixels2 = blurCache.blur(imp, flChannel, z, t, crop, bounds, sigma);
+        float[] afPixels2 = blurCache.blur(imp, afChannel, z, t, crop, bounds, sigma);
+        float[] redPixels2 = useRed ? blurCache.blur(imp, redChannel, z, t, crop, bounds, sigma) : null;
+        if (timings != null)
+            timings.stop((long) crop.width * crop.height * (useRed ? 3 : 2));
+
+        // Raw planes
+        ImageProcessor flImProc = null;
+        ImageProcessor afImProc = null;
+        ImageProcessor redImProc = null;
+        if (raw) {
+            ImageStack stack = imp.getStack();
+            flImProc = stack.getProcessor(imp.getStackIndex(flChannel, z, t));
+            afImProc = stack.getProcessor(imp.getStackIndex(afChannel, z, t));
+            if (useRed)
+                redImProc = stack.getProcessor(imp.getStackIndex(redChannel, z, t));
+        }
+
+        // Collect pixel values within the ROI bounding rectangle
+        if (timings != null)
+            timings.start("extract");
+        int k = 0;
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            int maskOffset = (y - roiBounds.y) * roiBounds.width - roiBounds.x;
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                if (maskPixels == null || maskPixels[maskOffset + x] != 0) {
+                    int i2 = (y - crop.y) * crop.width + x - crop.x;
+                    data.xc[k] = x;
+                    data.yc[k] = y;
+                    data.flGausPixelVals[k] = flPixels2[i2];
+                    data.afGausPixelVals[k] = afPixels2[i2];
+                    if (useRed)
+                        data.redGausPixelVals[k] = redPixels2[i2];
+                    if (raw) {
+                        int i = y * width + x;
+                        data.flPixelVals[k] = flImProc.getf(i);
+                        data.afPixelVals[k] = afImProc.getf(i);
+                        if (useRed)
+                            data.redPixelVals[k] = redImProc.getf(i);
+                    }
+                    k += 1;
+                }
+            }
+        }
+        if (timings != null)
+            timings.stop(data.n);
+        return data;
+    }
+
+
+    // Number of ROI pixels within the image, 0 if the ROI lies outside it
+    private static int pixelCount(byte[] maskPixels, Rectangle bounds, Rectangle roiBounds) {
+        if (bounds.isEmpty()) return 0;
+        if (maskPixels == null) return bounds.width * bounds.height;
+        int n = 0;
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            int maskOffset = (y - roiBounds.y) * roiBounds.width - roiBounds.x;
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                if (maskPixels[maskOffset + x] != 0) n += 1;
+            }
+        }
+        return n;
+    }
+
+}
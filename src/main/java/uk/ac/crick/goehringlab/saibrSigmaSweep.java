@@ -0,0 +1,207 @@
+package uk.ac.crick.goehringlab;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+
+// Automatic choice of the Gaussian blur radius for calibration. Each candidate sigma is fitted on
+// blurred pixels in a checkerboard of training blocks, and scored by how well the fit predicts the
+// unblurred primary channel in the held-out blocks. Too little blur leaves noise in the predictors,
+// too much removes real structure, so the score peaks in between.
+// Sigmas are reached by cascading blurs (blurring by sigma1 then by sqrt(sigma2^2 - sigma1^2) equals
+// blurring by sigma2), and runs of sigmas are evaluated in parallel.
+class saibrSigmaSweep {
+
+    static final double[] DEFAULT_SIGMAS = {0, 0.5, 1, 1.5, 2, 3, 4, 5, 6, 8, 10};
+
+    // Side of the train/test checkerboard blocks (pixels)
+    private static final int BLOCK_SIZE = 16;
+
+    // Results
+    private final double[] sigmas;
+    private final double[] scores;
+
+
+    private saibrSigmaSweep(double[] sigmas, double[] scores) {
+        this.sigmas = sigmas;
+        this.scores = scores;
+    }
+
+
+    // Channels are 1-based, redChannel <= 0 for two channel calibration. Sigmas must be ascending
+    static saibrSigmaSweep run(ImagePlus[] imps, Roi[] rois, int flChannel, int afChannel, int redChannel,
+                               double[] sigmas, int nThreads) {
+        int nSigmas = sigmas.length;
+        int nPredictors = redChannel > 0 ? 2 : 1;
+
+        // Split the sigmas into runs, so that threads left over after one per image share the sweep
+        int nRuns = Math.max(1, Math.min(nSigmas, nThreads / imps.length));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, imps.length * nRuns)));
+        try {
+            List<Future<saibrRegression[][]>> futures = new ArrayList<>();
+            for (int i = 0; i < imps.length; i++) {
+                for (int r = 0; r < nRuns; r++) {
+                    final ImagePlus imp = imps[i];
+                    final Roi roi = rois[i];
+                    final int first = r * nSigmas / nRuns;
+                    final int last = (r + 1) * nSigmas / nRuns;
+                    Callable<saibrRegression[][]> task = () -> sweepImage(imp, roi, flChannel, afChannel, redChannel,
+                            sigmas, first, last);
+                    futures.add(pool.submit(saibrTimings.counted(task)));
+                }
+            }
+
+            // Merge training and test statistics across images
+            saibrRegression[] train = new saibrRegression[nSigmas];
+            saibrRegression[] test = new saibrRegression[nSigmas];
+            for (int k = 0; k < nSigmas; k++) {
+                train[k] = new saibrRegression(nPredictors);
+                test[k] = new saibrRegression(nPredictors);
+            }
+            for (Future<saibrRegression[][]> future : futures) {
+                saibrRegression[][] result = future.get();
+                for (int k = 0; k < nSigmas; k++) {
+                    if (result[0][k] != null) {
+                        train[k].merge(result[0][k]);
+                        test[k].merge(result[1][k]);
+                    }
+                }
+            }
+
+            // Score
+            double[] scores = new double[nSigmas];
+            for (int k = 0; k < nSigmas; k++) {
+                if (train[k].getN() < nPredictors + 1 || test[k].getN() < 2) {
+                    scores[k] = Double.NaN;
+                    continue;
+                }
+                train[k].fit();
+                scores[k] = test[k].r2(train[k].getC(), train[k].getM1(), train[k].getM2());
+            }
+            return new saibrSigmaSweep(sigmas.clone(), scores);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Blur radius selection interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+
+    // Training and test statistics of one image for sigmas[first..last), as {train, test}
+    private static saibrRegression[][] sweepImage(ImagePlus imp, Roi roi, int flChannel, int afChannel,
+                                                  int redChannel, double[] sigmas, int first, int last) {
+        int nPredictors = redChannel > 0 ? 2 : 1;
+        saibrRegression[][] result = new saibrRegression[2][sigmas.length];
+
+        // ROI mask and bounds
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        ImageProcessor mask = roi.getMask();
+        byte[] maskPixels = mask == null ? null : (byte[]) mask.getPixels();
+        Rectangle roiBounds = roi.getBounds();
+        Rectangle bounds = roiBounds.intersection(new Rectangle(0, 0, width, height));
+        if (bounds.isEmpty())
+            return result;
+
+        // Crop wide enough for every blur in the cascade
+        int margin = saibrBlur.margin(sigmas[first]);
+        for (int k = first + 1; k < last; k++)
+            margin += saibrBlur.margin(increment(sigmas[k - 1], sigmas[k]));
+        Rectangle crop = new Rectangle(bounds.x - margin, bounds.y - margin,
+                bounds.width + 2 * margin, bounds.height + 2 * margin).intersection(new Rectangle(0, 0, width, height));
+
+        // Current slice
+        int z = imp.getZ();
+        int t = imp.getT();
+        ImageStack stack = imp.getStack();
+        ImageProcessor flIp = stack.getProcessor(imp.getStackIndex(flChannel, z, t));
+        FloatProcessor fl = saibrBlur.copy(flIp, crop);
+        FloatProcessor af = saibrBlur.copy(stack.getProcessor(imp.getStackIndex(afChannel, z, t)), crop);
+        FloatProcessor red = redChannel > 0
+                ? saibrBlur.copy(stack.getProcessor(imp.getStackIndex(redChannel, z, t)), crop) : null;
+        float[] flPixels = (float[]) fl.getPixels();
+        float[] afPixels = (float[]) af.getPixels();
+        float[] redPixels = red == null ? null : (float[]) red.getPixels();
+
+        GaussianBlur gb = new GaussianBlur();
+        for (int k = first; k < last; k++) {
+
+            // Blur on to this sigma
+            double step = k == first ? sigmas[k] : increment(sigmas[k - 1], sigmas[k]);
+            if (step > 0) {
+                gb.blurGaussian(fl, step, step, saibrBlur.ACCURACY);
+                gb.blurGaussian(af, step, step, saibrBlur.ACCURACY);
+                if (red != null)
+                    gb.blurGaussian(red, step, step, saibrBlur.ACCURACY);
+            }
+
+            // Train on blurred pixels, test against the raw primary channel
+            saibrRegression train = new saibrRegression(nPredictors);
+            saibrRegression test = new saibrRegression(nPredictors);
+            for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+                int maskOffset = (y - roiBounds.y) * roiBounds.width - roiBounds.x;
+                for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                    if (maskPixels == null || maskPixels[maskOffset + x] != 0) {
+                        int i = (y - crop.y) * crop.width + x - crop.x;
+                        boolean held = ((x / BLOCK_SIZE + y / BLOCK_SIZE) & 1) != 0;
+                        double flValue = held ? flIp.getf(x, y) : flPixels[i];
+                        saibrRegression regression = held ? test : train;
+                        if (redPixels == null)
+                            regression.add(flValue, afPixels[i]);
+                        else
+                            regression.add(flValue, afPixels[i], redPixels[i]);
+                    }
+                }
+            }
+            result[0][k] = train;
+            result[1][k] = test;
+        }
+        return result;
+    }
+
+
+    private static double increment(double sigma1, double sigma2) {
+        return Math.sqrt(Math.max(0, sigma2 * sigma2 - sigma1 * sigma1));
+    }
+
+
+    //////////////////// ACCESSORS /////////////////////
+
+    double[] getSigmas() {
+        return sigmas;
+    }
+
+    double[] getScores() {
+        return scores;
+    }
+
+    // Sigma with the highest held-out R squared
+    double getBestSigma() {
+        int best = -1;
+        for (int k = 0; k < scores.length; k++) {
+            if (!Double.isNaN(scores[k]) && (best < 0 || scores[k] > scores[best]))
+                best = k;
+        }
+        return best < 0 ? Double.NaN : sigmas[best];
+    }
+
+}
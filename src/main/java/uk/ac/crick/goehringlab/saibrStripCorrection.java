@@ -0,0 +1,294 @@
+package uk.ac.crick.goehringlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import ij.IJ;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.Opener;
+import ij.measure.Calibration;
+
+
+// Out-of-core correction of an uncompressed TIFF that is too large to open. Each plane is read in
+// strips of rows straight from the file, corrected and written to a TIFF, so peak memory is set by the
+// strip size rather than the image size. 16-bit scaled output is bounded from the range of each input
+// channel, found by a read-only pass that does not correct.
+class saibrStripCorrection {
+
+    // File layout
+    private final FileChannel in;
+    private final FileInfo[] info;
+    private final FileInfo fi;
+    private final int nChannels;
+    private final int nSlices;
+    private final int nFrames;
+
+    // Correction
+    private final int flChannel;
+    private final int afChannel;
+    private final int redChannel;
+    private final double[][] frameCoefs;
+
+    // Strip buffers
+    private final int rows;
+    private final ByteBuffer raw;
+    private final float[] fl;
+    private final float[] af;
+    private final float[] red;
+
+
+    private saibrStripCorrection(FileChannel in, FileInfo[] info, int nChannels, int nSlices, int nFrames,
+                                 int flChannel, int afChannel, int redChannel, double[][] frameCoefs, int rows) {
+        this.in = in;
+        this.info = info;
+        this.fi = info[0];
+        this.nChannels = nChannels;
+        this.nSlices = nSlices;
+        this.nFrames = nFrames;
+        this.flChannel = flChannel;
+        this.afChannel = afChannel;
+        this.redChannel = redChannel;
+        this.frameCoefs = frameCoefs;
+        this.rows = rows;
+        int n = rows * fi.width;
+        raw = ByteBuffer.allocate(n * fi.getBytesPerPixel())
+                .order(fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        fl = new float[n];
+        af = new float[n];
+        red = redChannel > 0 ? new float[n] : null;
+    }
+
+
+    // Channels are 1-based, redChannel <= 0 for two channel correction. Per-frame coefficients {c, m1, m2}
+    // are interpolated if the number of frames differs. Output type from saibrCorrection. Memory is the
+    // budget for strip buffers (bytes)
+    static void run(File input, File output, int flChannel, int afChannel, int redChannel,
+                    double[][] frameCoefs, int type, long memory) throws IOException {
+        if (input.getAbsoluteFile().equals(output.getAbsoluteFile()))
+            throw new IOException("Input and output files must be different");
+
+        // Reading file layout
+        FileInfo[] info = Opener.getTiffFileInfo(input.getPath());
+        if (info == null || info.length == 0)
+            throw new IOException("Not a TIFF file: " + input.getName());
+        FileInfo fi = info[0];
+        if (fi.compression != FileInfo.COMPRESSION_NONE)
+            throw new IOException("Compressed TIFFs are not supported");
+        if (fi.fileType != FileInfo.GRAY8 && fi.fileType != FileInfo.GRAY16_UNSIGNED
+                && fi.fileType != FileInfo.GRAY32_FLOAT)
+            throw new IOException("Only 8-bit, 16-bit and 32-bit grayscale TIFFs are supported");
+        int nImages = info.length > 1 ? info.length : Math.max(fi.nImages, 1);
+
+        // Dimensions, from the ImageJ description
+        Properties props = new FileOpener(fi).decodeDescriptionString(fi);
+        if (props == null)
+            throw new IOException("Not an ImageJ hyperstack TIFF: " + input.getName());
+        int nChannels = dimension(props, "channels");
+        int nSlices = dimension(props, "slices");
+        int nFrames = dimension(props, "frames");
+        if (nChannels * nSlices * nFrames != nImages)
+            throw new IOException("Image description does not match the number of planes");
+        if (nChannels < Math.max(flChannel, Math.max(afChannel, redChannel)))
+            throw new IOException("Image has " + nChannels + " channel(s)");
+
+        // Strip height within the memory budget: a raw buffer, float buffers for each channel and the output
+        int nInputs = redChannel > 0 ? 3 : 2;
+        int outBytes = type == saibrCorrection.FLOAT ? 4 : 2;
+        long bytesPerRow = (long) fi.width * (fi.getBytesPerPixel() + nInputs * 4 + outBytes);
+        int rows = (int) Math.max(1, Math.min(fi.height, memory / bytesPerRow));
+
+        Calibration cal = new Calibration();
+        cal.pixelWidth = fi.pixelWidth;
+        cal.pixelHeight = fi.pixelHeight;
+        cal.pixelDepth = fi.pixelDepth;
+        cal.frameInterval = fi.frameInterval;
+        cal.setUnit(fi.unit);
+
+        try (FileChannel in = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            saibrStripCorrection strips = new saibrStripCorrection(in, info, nChannels, nSlices, nFrames,
+                    flChannel, afChannel, redChannel, frameCoefs, rows);
+
+            // Scaling, bounded from the input range
+            double[] scaling = null;
+            if (type == saibrCorrection.SCALED_16) {
+                double[][] planeCoefs = saibrCorrection.planeCoefficients(frameCoefs, nSlices, nFrames);
+                scaling = saibrCorrection.boundedScaling(strips.range(flChannel), strips.range(afChannel),
+                        redChannel > 0 ? strips.range(redChannel) : null, planeCoefs);
+            }
+
+            // Correct
+            try (saibrTiffWriter writer = new saibrTiffWriter(output, fi.width, fi.height, nSlices, nFrames, cal,
+                    type, scaling)) {
+                strips.correct(writer);
+            }
+        }
+        IJ.showProgress(1.0);
+    }
+
+
+    // Corrects every plane strip by strip, writing to the writer
+    private void correct(saibrTiffWriter writer) throws IOException {
+        int width = fi.width;
+        int height = fi.height;
+        int type = writer.getType();
+        double[] scaling = writer.getScaling();
+        double offset = type == saibrCorrection.SCALED_16 ? scaling[0] : 0;
+        double invScale = type == saibrCorrection.SCALED_16 ? 1 / scaling[1] : 1;
+        Object out = saibrCorrection.newPlane(type, rows * width);
+
+        for (int t = 0; t < nFrames; t++) {
+            double[] coefs = saibrCorrection.frameCoefficients(frameCoefs, t + 1, nFrames);
+            for (int z = 0; z < nSlices; z++) {
+                int plane = t * nSlices + z;
+                IJ.showProgress(plane, nSlices * nFrames);
+
+                // Channel planes, 0-based and in ImageJ's czt order
+                int flIndex = plane * nChannels + flChannel - 1;
+                int afIndex = plane * nChannels + afChannel - 1;
+                int redIndex = plane * nChannels + redChannel - 1;
+
+                for (int y = 0; y < height; y += rows) {
+                    int nRows = Math.min(rows, height - y);
+                    int n = nRows * width;
+                    read(in, info, fi, flIndex, y, nRows, raw, fl);
+                    read(in, info, fi, afIndex, y, nRows, raw, af);
+                    if (red != null)
+                        read(in, info, fi, redIndex, y, nRows, raw, red);
+                    if (type == saibrCorrection.FLOAT)
+                        correctRows(fl, af, red, coefs[0], coefs[1], coefs[2], (float[]) out, n);
+                    else
+                        correctRows(fl, af, red, coefs[0], coefs[1], coefs[2], type, offset, invScale,
+                                (short[]) out, n);
+
+                    writer.writeRows(plane, y, out, nRows);
+                }
+            }
+        }
+    }
+
+
+    // Range {min, max} of the finite values of a channel (1-based), read strip by strip
+    private double[] range(int channel) throws IOException {
+        double lo = Double.POSITIVE_INFINITY;
+        double hi = Double.NEGATIVE_INFINITY;
+        for (int plane = 0; plane < nSlices * nFrames; plane++) {
+            for (int y = 0; y < fi.height; y += rows) {
+                int nRows = Math.min(rows, fi.height - y);
+                read(in, info, fi, plane * nChannels + channel - 1, y, nRows, raw, fl);
+                for (int i = 0; i < nRows * fi.width; i++) {
+                    float v = fl[i];
+                    if (v < lo && v != Float.NEGATIVE_INFINITY)
+                        lo = v;
+                    if (v > hi && v != Float.POSITIVE_INFINITY)
+                        hi = v;
+                }
+            }
+        }
+        return lo <= hi ? new double[]{lo, hi} : new double[]{0, 0};
+    }
+
+
+    ////////////////////// READING //////////////////////
+
+    // Size of a hyperstack dimension in the ImageJ description, 1 if absent
+    private static int dimension(Properties props, String key) throws IOException {
+        String value = props.getProperty(key, "1").trim();
+        try {
+            int n = Integer.parseInt(value);
+            if (n < 1)
+                throw new NumberFormatException();
+            return n;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number of " + key + " in the image description: " + value);
+        }
+    }
+
+
+    // Reads rows [y, y + nRows) of an image (0-based) as floats
+    private static void read(FileChannel in, FileInfo[] info, FileInfo fi, int image, int y, int nRows,
+                             ByteBuffer raw, float[] dst) throws IOException {
+        int rowBytes = fi.width * fi.getBytesPerPixel();
+        raw.clear();
+        raw.limit(nRows * rowBytes);
+
+        // Rows are contiguous within a TIFF strip, but strips may be anywhere in the file
+        int row = y;
+        while (row < y + nRows) {
+            FileInfo ifd = info.length > 1 ? info[image] : fi;
+            int rowsPerStrip = ifd.rowsPerStrip > 0 ? ifd.rowsPerStrip : fi.height;
+            int strip = row / rowsPerStrip;
+            int count = Math.min(y + nRows, (strip + 1) * rowsPerStrip) - row;
+            long position;
+            if (info.length == 1 && image > 0) {
+                // Stacks saved by ImageJ as one directory with contiguous planes
+                long planeBytes = (long) fi.height * rowBytes;
+                position = fi.getOffset() + image * (planeBytes + fi.gapBetweenImages) + (long) row * rowBytes;
+                count = y + nRows - row;
+            } else if (ifd.stripOffsets != null && ifd.stripOffsets.length > 1) {
+                position = (ifd.stripOffsets[strip] & 0xffffffffL) + (long) (row - strip * rowsPerStrip) * rowBytes;
+            } else {
+                position = ifd.getOffset() + (long) row * rowBytes;
+                count = y + nRows - row;
+            }
+
+            raw.limit((row - y + count) * rowBytes);
+            while (raw.hasRemaining()) {
+                int nRead = in.read(raw, position);
+                if (nRead < 0)
+                    throw new IOException("Unexpected end of file");
+                position += nRead;
+            }
+            row += count;
+        }
+        raw.flip();
+
+        // Converting
+        int n = nRows * fi.width;
+        switch (fi.fileType) {
+            case FileInfo.GRAY8:
+                for (int i = 0; i < n; i++)
+                    dst[i] = raw.get(i) & 0xff;
+                break;
+            case FileInfo.GRAY16_UNSIGNED:
+                for (int i = 0; i < n; i++)
+                    dst[i] = raw.getShort(2 * i) & 0xffff;
+                break;
+            default:
+                raw.asFloatBuffer().get(dst, 0, n);
+        }
+    }
+
+
+    ///////////////////// CORRECTION /////////////////////
+
+    private static void correctRows(float[] fl, float[] af, float[] red, double c, double m1, double m2,
+                                    float[] out, int n) {
+        if (red == null) {
+            for (int i = 0; i < n; i++)
+                out[i] = (float) (fl[i] - (c + m1 * af[i]));
+        } else {
+            for (int i = 0; i < n; i++)
+                out[i] = (float) (fl[i] - (c + m1 * af[i] + m2 * red[i]));
+        }
+    }
+
+
+    // 16-bit output, as in saibrCorrection.correctPlane
+    private static void correctRows(float[] fl, float[] af, float[] red, double c, double m1, double m2,
+                                    int type, double offset, double invScale, short[] out, int n) {
+        if (red == null) {
+            for (int i = 0; i < n; i++)
+                out[i] = saibrCorrection.encode(fl[i] - (c + m1 * af[i]), type, offset, invScale);
+        } else {
+            for (int i = 0; i < n; i++)
+                out[i] = saibrCorrection.encode(fl[i] - (c + m1 * af[i] + m2 * red[i]), type, offset, invScale);
+        }
+    }
+
+}
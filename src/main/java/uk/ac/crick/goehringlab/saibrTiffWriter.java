@@ -0,0 +1,241 @@
+package uk.ac.crick.goehringlab;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import ij.measure.Calibration;
+
+
+// Single channel TIFF written in ImageJ's layout for large stacks: one image file directory
+// describing the first plane, an ImageJ description giving the number of planes and the hyperstack
+// dimensions, then every plane stored contiguously. The file is sized up front and rows are written at
+// their position as they arrive, in any order and from any thread, through small reused direct buffers,
+// so the OS page cache does the buffering and the output never has to be held on the heap. The file is
+// synced to disk once, on close. The file is deliberately not memory mapped: mapping each block of rows
+// forced one sync per strip, and on Windows open mappings keep the file locked until they are collected.
+// Pixels are 32-bit floats, 16-bit integers with the scaling recorded as an ImageJ calibration
+// function, or 16-bit half floats (SampleFormat 3), which ImageJ cannot display but numpy and
+// tifffile read directly.
+class saibrTiffWriter implements Closeable {
+
+    // TIFF field types
+    private static final short SHORT = 3;
+    private static final short LONG = 4;
+    private static final short RATIONAL = 5;
+    private static final short ASCII = 2;
+
+    // Header and image file directory are padded to this offset
+    private static final int ALIGNMENT = 16;
+
+    // Size of the conversion buffers (bytes)
+    private static final int BUFFER_SIZE = 1 << 22;
+
+    private final int width;
+    private final int height;
+    private final int nPlanes;
+    private final int type;
+    private final double[] scaling;
+    private final int bytesPerPixel;
+    private final long dataOffset;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    // Conversion buffers not in use, one per concurrent writing thread at most
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+
+    // 32-bit float output. Planes are ordered slice first, then frame
+    saibrTiffWriter(File output, int width, int height, int nSlices, int nFrames, Calibration cal)
+            throws IOException {
+        this(output, width, height, nSlices, nFrames, cal, saibrCorrection.FLOAT, null);
+    }
+
+
+    // Output type from saibrCorrection, with scaling {offset, scale} for 16-bit scaled output
+    saibrTiffWriter(File output, int width, int height, int nSlices, int nFrames, Calibration cal, int type,
+                    double[] scaling) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.nPlanes = nSlices * nFrames;
+        this.type = type;
+        this.scaling = scaling;
+        this.bytesPerPixel = type == saibrCorrection.FLOAT ? 4 : 2;
+        byte[] header = header(width, height, nSlices, nFrames, cal, type, scaling);
+        this.dataOffset = header.length;
+
+        file = new RandomAccessFile(output, "rw");
+        try {
+            file.setLength(0);
+            file.setLength(dataOffset + (long) nPlanes * width * height * bytesPerPixel);
+            channel = file.getChannel();
+            writeFully(ByteBuffer.wrap(header), 0);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+
+    ///////////////////// WRITING //////////////////////
+
+    int getType() {
+        return type;
+    }
+
+
+    double[] getScaling() {
+        return scaling;
+    }
+
+
+    // Writes a whole plane (0-based), as float[] for 32-bit output or short[] for 16-bit output
+    void writePlane(int plane, Object pixels) throws IOException {
+        writeRows(plane, 0, pixels, height);
+    }
+
+
+    // Writes nRows rows of a plane (0-based), starting at row y
+    void writeRows(int plane, int y, Object pixels, int nRows) throws IOException {
+        if (plane < 0 || plane >= nPlanes || y < 0 || y + nRows > height)
+            throw new IllegalArgumentException("Rows out of range");
+        long position = dataOffset + ((long) plane * height + y) * width * bytesPerPixel;
+        int nPixels = nRows * width;
+        int pixelsPerWrite = BUFFER_SIZE / bytesPerPixel;
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            for (int i = 0; i < nPixels; i += pixelsPerWrite) {
+                int n = Math.min(pixelsPerWrite, nPixels - i);
+                buffer.clear();
+                if (bytesPerPixel == 4)
+                    buffer.asFloatBuffer().put((float[]) pixels, i, n);
+                else
+                    buffer.asShortBuffer().put((short[]) pixels, i, n);
+                buffer.limit(n * bytesPerPixel);
+                writeFully(buffer, position + (long) i * bytesPerPixel);
+            }
+        } finally {
+            buffers.offer(buffer);
+        }
+    }
+
+
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining())
+            position += channel.write(src, position);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.force(true);
+        } finally {
+            file.close();
+        }
+    }
+
+
+    ////////////////////// HEADER //////////////////////
+
+    private static byte[] header(int width, int height, int nSlices, int nFrames, Calibration cal, int type,
+                                 double[] scaling) {
+        byte[] description = description(nSlices, nFrames, cal, type == saibrCorrection.SCALED_16 ? scaling : null);
+        int bitsPerSample = type == saibrCorrection.FLOAT ? 32 : 16;
+        int sampleFormat = type == saibrCorrection.SCALED_16 ? 1 : 3;
+        boolean scaled = cal != null && cal.scaled();
+        int nEntries = scaled ? 13 : 10;
+
+        // Layout: header, directory, description, resolutions, then pixel data
+        int ifdOffset = 8;
+        int descriptionOffset = ifdOffset + 2 + nEntries * 12 + 4;
+        int resolutionOffset = descriptionOffset + description.length;
+        int end = resolutionOffset + (scaled ? 16 : 0);
+        int dataOffset = (end + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        long planeBytes = (long) width * height * bitsPerSample / 8;
+
+        ByteBuffer bb = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+        bb.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifdOffset);
+
+        // Directory, in ascending tag order
+        bb.putShort((short) nEntries);
+        entry(bb, 254, LONG, 1, 0);                                     // NewSubfileType
+        entry(bb, 256, LONG, 1, width);                                 // ImageWidth
+        entry(bb, 257, LONG, 1, height);                                // ImageLength
+        entry(bb, 258, SHORT, 1, bitsPerSample);                        // BitsPerSample
+        entry(bb, 262, SHORT, 1, 1);                                    // PhotometricInterpretation
+        entry(bb, 270, ASCII, description.length, descriptionOffset);   // ImageDescription
+        entry(bb, 273, LONG, 1, dataOffset);                            // StripOffsets
+        entry(bb, 278, LONG, 1, height);                                // RowsPerStrip
+        entry(bb, 279, LONG, 1, (int) Math.min(planeBytes, 0xffffffffL)); // StripByteCounts
+        if (scaled) {
+            entry(bb, 282, RATIONAL, 1, resolutionOffset);              // XResolution
+            entry(bb, 283, RATIONAL, 1, resolutionOffset + 8);          // YResolution
+            entry(bb, 296, SHORT, 1, 1);                                // ResolutionUnit (none)
+        }
+        entry(bb, 339, SHORT, 1, sampleFormat);                         // SampleFormat
+        bb.putInt(0);
+
+        // Values
+        bb.put(description);
+        if (scaled) {
+            rational(bb, 1 / cal.pixelWidth);
+            rational(bb, 1 / cal.pixelHeight);
+        }
+        return bb.array();
+    }
+
+
+    private static void entry(ByteBuffer bb, int tag, short type, int count, int value) {
+        bb.putShort((short) tag).putShort(type).putInt(count);
+        if (type == SHORT && count == 1)
+            bb.putShort((short) value).putShort((short) 0);
+        else
+            bb.putInt(value);
+    }
+
+
+    private static void rational(ByteBuffer bb, double value) {
+        int denominator = 1000000;
+        bb.putInt((int) Math.min(Math.round(value * denominator), Integer.MAX_VALUE)).putInt(denominator);
+    }
+
+
+    // Null terminated ImageJ description, with a straight line calibration function if scaled
+    private static byte[] description(int nSlices, int nFrames, Calibration cal, double[] scaling) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ImageJ=1.52i\n");
+        sb.append("images=").append(nSlices * nFrames).append('\n');
+        if (nSlices > 1)
+            sb.append("slices=").append(nSlices).append('\n');
+        if (nFrames > 1)
+            sb.append("frames=").append(nFrames).append('\n');
+        if (nSlices > 1 && nFrames > 1)
+            sb.append("hyperstack=true\n");
+        if (cal != null) {
+            if (cal.scaled())
+                sb.append("unit=").append(cal.getUnit()).append('\n');
+            if (nSlices > 1 && cal.pixelDepth != 1)
+                sb.append("spacing=").append(cal.pixelDepth).append('\n');
+            if (nFrames > 1 && cal.frameInterval != 0)
+                sb.append("finterval=").append(cal.frameInterval).append('\n');
+        }
+        if (scaling != null) {
+            sb.append("cf=").append(Calibration.STRAIGHT_LINE).append('\n');
+            sb.append("c0=").append(scaling[0]).append('\n');
+            sb.append("c1=").append(scaling[1]).append('\n');
+            sb.append("vunit=Gray Value\n");
+        }
+        sb.append('\0');
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,197 @@
+package uk.ac.crick.goehringlab;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ij.IJ;
+import ij.Prefs;
+
+
+// Per-stage wall time, pixel count and allocated bytes of one calibration or correction run. Stages can
+// be nested and are reported exclusive of their children; repeated stages (e.g. one per image) are summed.
+// When enabled, the stages are printed to the Log and appended as one JSON line per run to
+// saibr_timings.jsonl in the ImageJ preferences folder.
+// Stages are recorded by the thread that created the timings. Pool tasks wrapped with counted() add the
+// allocation of their worker thread to the stage open when they were submitted.
+class saibrTimings {
+
+    private static final String PREF_KEY = "saibr.timings";
+    private static final String FILE_NAME = "saibr_timings.jsonl";
+
+    private final String run;
+    private final Thread owner = Thread.currentThread();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private final Deque<Frame> open = new ArrayDeque<>();
+
+    // Bytes allocated by counted pool tasks
+    private final AtomicLong workerBytes = new AtomicLong();
+
+    // Timings with a stage open on this thread
+    private static final ThreadLocal<saibrTimings> active = new ThreadLocal<>();
+
+
+    saibrTimings(String run) {
+        this.run = run;
+    }
+
+
+    static boolean isEnabled() {
+        return Prefs.get(PREF_KEY, false);
+    }
+
+
+    static void setEnabled(boolean enabled) {
+        Prefs.set(PREF_KEY, enabled);
+    }
+
+
+    ///////////////////// RECORDING //////////////////////
+
+    void start(String stage) {
+        if (Thread.currentThread() != owner)
+            return;
+        if (!stages.containsKey(stage))
+            stages.put(stage, new Stage());
+        open.push(new Frame(stage, System.nanoTime(), allocatedBytes()));
+        active.set(this);
+    }
+
+
+    // Ends the most recently started stage
+    void stop(long pixels) {
+        if (Thread.currentThread() != owner || open.isEmpty())
+            return;
+        Frame frame = open.pop();
+        if (open.isEmpty())
+            active.remove();
+        long nanos = System.nanoTime() - frame.startNanos;
+        long bytes = frame.startBytes < 0 ? -1 : allocatedBytes() - frame.startBytes;
+
+        // Exclusive of nested stages
+        Stage stage = stages.get(frame.name);
+        stage.nanos += nanos - frame.childNanos;
+        stage.bytes = bytes < 0 ? -1 : stage.bytes + bytes - frame.childBytes;
+        stage.pixels += pixels;
+        if (!open.isEmpty()) {
+            open.peek().childNanos += nanos;
+            open.peek().childBytes += Math.max(bytes, 0);
+        }
+    }
+
+
+    // Task for a pool worker that adds the worker's allocation to the stage open on the submitting thread
+    static <T> Callable<T> counted(Callable<T> task) {
+        saibrTimings timings = active.get();
+        if (timings == null)
+            return task;
+        return () -> {
+            long start = threadAllocatedBytes();
+            try {
+                return task.call();
+            } finally {
+                if (start >= 0)
+                    timings.workerBytes.addAndGet(threadAllocatedBytes() - start);
+            }
+        };
+    }
+
+
+    // Bytes allocated by this thread and by the counted tasks it started, -1 if not measurable
+    private long allocatedBytes() {
+        long bytes = threadAllocatedBytes();
+        return bytes < 0 ? -1 : bytes + workerBytes.get();
+    }
+
+
+    private static long threadAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled())
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+
+    ///////////////////// REPORTING //////////////////////
+
+    // Logs and saves the run if enabled
+    void finish() {
+        if (!isEnabled() || Thread.currentThread() != owner)
+            return;
+        double totalMs = (System.nanoTime() - startNanos) / 1e6;
+
+        // Log
+        IJ.log("SAIBR " + run + " timings (total " + String.format(Locale.UK, "%.1f", totalMs) + " ms)");
+        for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+            Stage stage = entry.getValue();
+            IJ.log(String.format(Locale.UK, "  %-12s %10.1f ms %10.1f Mpixel/s %10s allocated", entry.getKey(),
+                    stage.nanos / 1e6, stage.mpixelsPerSecond(),
+                    stage.bytes < 0 ? "n/a" : String.format(Locale.UK, "%.1f MB", stage.bytes / 1e6)));
+        }
+
+        // Append JSON line
+        List<String> stageJson = new ArrayList<>();
+        for (Map.Entry<String, Stage> entry : stages.entrySet()) {
+            Stage stage = entry.getValue();
+            stageJson.add(String.format(Locale.UK,
+                    "{\"name\":\"%s\",\"ms\":%.3f,\"pixels\":%d,\"mpixel_per_s\":%.3f,\"allocated_bytes\":%d}",
+                    entry.getKey(), stage.nanos / 1e6, stage.pixels, stage.mpixelsPerSecond(), stage.bytes));
+        }
+        String line = String.format(Locale.UK, "{\"timestamp\":\"%s\",\"run\":\"%s\",\"total_ms\":%.3f,\"stages\":[%s]}",
+                Instant.now(), run, totalMs, String.join(",", stageJson));
+        File file = new File(Prefs.getPrefsDir(), FILE_NAME);
+        file.getParentFile().mkdirs();
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(line);
+            writer.write('\n');
+        } catch (IOException e) {
+            IJ.log("SAIBR: could not write " + file + ": " + e.getMessage());
+        }
+    }
+
+
+    private static final class Stage {
+        long nanos;
+        long pixels;
+        long bytes;
+
+        double mpixelsPerSecond() {
+            return nanos > 0 ? pixels / (nanos / 1e3) : 0;
+        }
+    }
+
+
+    private static final class Frame {
+        final String name;
+        final long startNanos;
+        final long startBytes;
+        long childNanos;
+        long childBytes;
+
+        Frame(String name, long startNanos, long startBytes) {
+            this.name = name;
+            this.startNanos = startNanos;
+            this.startBytes = startBytes;
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package uk.ac.crick.goehringlab;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+
+// Corrected image computed plane by plane on demand from the source hyperstack, so nothing is
+// duplicated or split up front. The most recently viewed planes are kept in a small LRU cache.
+class saibrVirtualStack extends VirtualStack {
+
+    private static final int CACHE_PLANES = 8;
+
+    // Source
+    private final ImagePlus imp;
+    private final int flChannel;
+    private final int afChannel;
+    private final int redChannel;
+    private final int nSlices;
+    private final int nFrames;
+
+    // Calibration, {c, m1, m2} per frame
+    private final double[][] frameCoefs;
+
+    // Cache of corrected planes, in access order
+    private final Map<Integer, float[]> cache = new LinkedHashMap<Integer, float[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, float[]> eldest) {
+            return size() > CACHE_PLANES;
+        }
+    };
+
+
+    // Channels are 1-based, redChannel <= 0 for two channel correction
+    saibrVirtualStack(ImagePlus imp, int flChannel, int afChannel, int redChannel, double[][] frameCoefs) {
+        super(imp.getWidth(), imp.getHeight());
+        this.imp = imp;
+        this.flChannel = flChannel;
+        this.afChannel = afChannel;
+        this.redChannel = redChannel;
+        this.nSlices = imp.getNSlices();
+        this.nFrames = imp.getNFrames();
+        this.frameCoefs = new double[nFrames][];
+        for (int t = 1; t <= nFrames; t++)
+            this.frameCoefs[t - 1] = saibrCorrection.frameCoefficients(frameCoefs, t, nFrames);
+        setBitDepth(32);
+    }
+
+
+    static ImagePlus createImage(ImagePlus imp, int flChannel, int afChannel, int redChannel,
+                                 double c, double m1, double m2, String title) {
+        return createImage(imp, flChannel, afChannel, redChannel, new double[][]{{c, m1, m2}}, title);
+    }
+
+
+    static ImagePlus createImage(ImagePlus imp, int flChannel, int afChannel, int redChannel,
+                                 double[][] frameCoefs, String title) {
+        saibrVirtualStack stack = new saibrVirtualStack(imp, flChannel, afChannel, redChannel, frameCoefs);
+        ImagePlus correctedImp = new ImagePlus(title, stack);
+        correctedImp.setDimensions(1, imp.getNSlices(), imp.getNFrames());
+        if (imp.getNSlices() > 1 && imp.getNFrames() > 1)
+            correctedImp.setOpenAsHyperStack(true);
+        correctedImp.setCalibration(imp.getCalibration());
+        return correctedImp;
+    }
+
+
+    @Override
+    public synchronized ImageProcessor getProcessor(int n) {
+        if (n < 1 || n > getSize())
+            throw new IllegalArgumentException("Argument out of range: " + n);
+
+        // Compute plane if not cached
+        float[] pixels = cache.get(n);
+        if (pixels == null) {
+            int z = (n - 1) % nSlices + 1;
+            int t = (n - 1) / nSlices + 1;
+            ImageStack source = imp.getStack();
+            ImageProcessor flIp = source.getProcessor(imp.getStackIndex(flChannel, z, t));
+            ImageProcessor afIp = source.getProcessor(imp.getStackIndex(afChannel, z, t));
+            ImageProcessor redIp = redChannel > 0 ? source.getProcessor(imp.getStackIndex(redChannel, z, t)) : null;
+            pixels = new float[getWidth() * getHeight()];
+            double[] coefs = frameCoefs[t - 1];
+            saibrCorrection.correctPlane(flIp, afIp, redIp, coefs[0], coefs[1], coefs[2], pixels);
+            cache.put(n, pixels);
+        }
+        return new FloatProcessor(getWidth(), getHeight(), pixels);
+    }
+
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+
+    @Override
+    public void setPixels(Object pixels, int n) {
+    }
+
+
+    @Override
+    public int getSize() {
+        return nSlices * nFrames;
+    }
+
+
+    @Override
+    public String getSliceLabel(int n) {
+        return null;
+    }
+
+
+    @Override
+    public void deleteSlice(int n) {
+        throw new UnsupportedOperationException("Corrected virtual stacks cannot be edited");
+    }
+
+
+    @Override
+    public void deleteLastSlice() {
+        throw new UnsupportedOperationException("Corrected virtual stacks cannot be edited");
+    }
+
+}